@@ -0,0 +1,182 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+ * The admission control class notices when the server is taking on more
+ * work than it can finish in time, and turns work away before it is run
+ * rather than letting every command grow late together.
+ *
+ * Overload is judged the way CoDel judges a queue: CommandScheduler reports
+ * how long each command it hands out sat in the queue, and once that
+ * sojourn time has stayed above TARGET_SOJOURN_NANOS for a whole
+ * INTERVAL_NANOS the queue is standing rather than a passing burst. The
+ * model also reports how long each command took to run; slow commands
+ * count as overload too, but only while other commands are waiting behind
+ * them. Either signal clears as soon as a command gets through the queue in
+ * less than the target, or the queue runs empty: as with CoDel leaving its
+ * dropping state, a queue that empties was not standing, however long the
+ * commands in it waited.
+ *
+ * Work is shed in order of priority. While overloaded, new connections,
+ * CREATE and SYNC (a history replay) are refused; if the overload lasts
+ * SEVERE_AFTER_NANOS, messages are refused as well. Everything else, such
+ * as NICK, JOIN, LEAVE and moderation, always runs, so users can still
+ * manage their sessions while the server recovers. Refused commands get a
+ * RATE_LIMITED error, the retry-later code described in ServerModel.
+ *
+ * The signals are fed on the command thread; admitConnection may be called
+ * from any thread.
+ */
+
+public class AdmissionControl {
+    static final long TARGET_SOJOURN_NANOS = 5_000_000L;
+    static final long INTERVAL_NANOS = 100_000_000L;
+    static final long TARGET_LATENCY_NANOS = 2_000_000L;
+    static final long SEVERE_AFTER_NANOS = 1_000_000_000L;
+
+    /**
+     * How much work is being shed: none, low-priority work only, or messages as well.
+     */
+    public enum Level { NORMAL, SHED_LOW_PRIORITY, SHED_MESSAGES }
+
+    private final LongSupplier clock;
+    private long aboveTargetSince;
+    private boolean standingQueue;
+    private boolean queued;
+    private double averageLatency;
+    private long overloadedSince;
+    private volatile Level level;
+    private final AtomicLong shedConnections;
+    private final AtomicLong shedCommands;
+
+    public AdmissionControl() {
+        this(System::nanoTime);
+    }
+
+    public AdmissionControl(LongSupplier clock) {
+        this.clock = clock;
+        this.aboveTargetSince = -1;
+        this.overloadedSince = -1;
+        this.level = Level.NORMAL;
+        this.shedConnections = new AtomicLong();
+        this.shedCommands = new AtomicLong();
+    }
+
+    /**
+     * Reports how long a command waited in the queue. Called by {@link CommandScheduler} as it
+     * hands the command out.
+     *
+     * @param sojournNanos The time between the command being queued and being taken
+     * @param now The current time
+     */
+    public void recordSojourn(long sojournNanos, long now) {
+        queued = sojournNanos >= TARGET_SOJOURN_NANOS;
+        if (!queued) {
+            aboveTargetSince = -1;
+            standingQueue = false;
+        } else if (aboveTargetSince < 0) {
+            aboveTargetSince = now;
+        } else if (now - aboveTargetSince >= INTERVAL_NANOS) {
+            standingQueue = true;
+        }
+        update(now);
+    }
+
+    /**
+     * Reports that the queue has run empty, which clears any overload. Called by
+     * {@link CommandScheduler} as it hands out the last queued command.
+     *
+     * @param now The current time
+     */
+    public void queueEmptied(long now) {
+        aboveTargetSince = -1;
+        standingQueue = false;
+        queued = false;
+        update(now);
+    }
+
+    /**
+     * @return The time to pass to {@link #commandFinished(long)} once the command has run
+     */
+    public long commandStarted() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Reports that a command has finished running, folding its latency into a moving average
+     * that weighs the latest command by 1/8.
+     *
+     * @param startedAt The time returned by {@link #commandStarted()}
+     */
+    public void commandFinished(long startedAt) {
+        long now = clock.getAsLong();
+        averageLatency += ((now - startedAt) - averageLatency) / 8;
+        update(now);
+    }
+
+    private void update(long now) {
+        boolean overloaded = standingQueue || (queued && averageLatency > TARGET_LATENCY_NANOS);
+        if (!overloaded) {
+            overloadedSince = -1;
+            level = Level.NORMAL;
+        } else {
+            if (overloadedSince < 0) {
+                overloadedSince = now;
+            }
+            level = now - overloadedSince >= SEVERE_AFTER_NANOS ? Level.SHED_MESSAGES
+                                                                : Level.SHED_LOW_PRIORITY;
+        }
+    }
+
+    /**
+     * Decides whether a command may run. Called by the model before it runs the command.
+     *
+     * @param command The command about to run
+     * @return true if the command may run, false if it is shed
+     */
+    public boolean admit(Command command) {
+        Level current = level;
+        boolean shed = current != Level.NORMAL && isLowPriority(command)
+                || current == Level.SHED_MESSAGES && isMessage(command);
+        if (shed) {
+            shedCommands.incrementAndGet();
+        }
+        return !shed;
+    }
+
+    /**
+     * Decides whether a new connection may be registered. The backend calls this before
+     * {@link ServerModel#registerUser(int)}, and closes the connection with a retry-later notice
+     * if it returns false.
+     *
+     * @return true if the connection may be registered
+     */
+    public boolean admitConnection() {
+        if (level == Level.NORMAL) {
+            return true;
+        }
+        shedConnections.incrementAndGet();
+        return false;
+    }
+
+    private static boolean isLowPriority(Command command) {
+        return command instanceof CreateCommand || command instanceof SyncCommand;
+    }
+
+    private static boolean isMessage(Command command) {
+        return command instanceof MessageCommand || command instanceof MultiMessageCommand
+                || command instanceof DirectMessageCommand;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public long getShedConnections() {
+        return shedConnections.get();
+    }
+
+    public long getShedCommands() {
+        return shedCommands.get();
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.*;
+
+/*
+ * A compressed bitmap MemberSet for very large channels. User IDs are split
+ * into a 16-bit high key and a 16-bit low value. Each high key owns one
+ * container: a sorted char array while it holds at most ARRAY_LIMIT values,
+ * and a fixed 8KB bitmap once it holds more. Dense runs of IDs (which the
+ * backend hands out sequentially) cost about one bit per member instead of
+ * a TreeMap node and a boxed Integer.
+ */
+
+public class BitmapMemberSet implements MemberSet {
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private int[] keys;
+    private Object[] containers;
+    private int[] cardinalities;
+    private int containerCount;
+    private int size;
+
+    public BitmapMemberSet() {
+        this.keys = new int[4];
+        this.containers = new Object[4];
+        this.cardinalities = new int[4];
+    }
+
+    public boolean add(int userId) {
+        int key = userId >>> 16;
+        char low = (char) userId;
+        int index = Arrays.binarySearch(keys, 0, containerCount, key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key);
+        }
+        Object container = containers[index];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+        } else {
+            char[] values = (char[]) container;
+            int cardinality = cardinalities[index];
+            int position = Arrays.binarySearch(values, 0, cardinality, low);
+            if (position >= 0) {
+                return false;
+            }
+            position = -position - 1;
+            if (cardinality == ARRAY_LIMIT) {
+                long[] bits = toBitmap(values, cardinality);
+                bits[low >>> 6] |= 1L << low;
+                containers[index] = bits;
+            } else {
+                if (cardinality == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+                    containers[index] = values;
+                }
+                System.arraycopy(values, position, values, position + 1, cardinality - position);
+                values[position] = low;
+            }
+        }
+        cardinalities[index]++;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int userId) {
+        int index = Arrays.binarySearch(keys, 0, containerCount, userId >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) userId;
+        Object container = containers[index];
+        int cardinality = cardinalities[index];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                return false;
+            }
+            bits[low >>> 6] &= ~mask;
+            if (cardinality - 1 == ARRAY_LIMIT) {
+                containers[index] = toArray(bits, ARRAY_LIMIT);
+            }
+        } else {
+            char[] values = (char[]) container;
+            int position = Arrays.binarySearch(values, 0, cardinality, low);
+            if (position < 0) {
+                return false;
+            }
+            System.arraycopy(values, position + 1, values, position, cardinality - position - 1);
+        }
+        size--;
+        if (--cardinalities[index] == 0) {
+            removeContainer(index);
+        }
+        return true;
+    }
+
+    public boolean contains(int userId) {
+        int index = Arrays.binarySearch(keys, 0, containerCount, userId >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) userId;
+        Object container = containers[index];
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, cardinalities[index], low) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PrimitiveIterator.OfInt iteratorFrom(int fromUserId) {
+        return new BitmapIterator(fromUserId);
+    }
+
+    @Override
+    public int copyTo(int[] into) {
+        int count = 0;
+        for (int index = 0; index < containerCount; index++) {
+            int high = keys[index] << 16;
+            Object container = containers[index];
+            if (container instanceof long[]) {
+                long[] bits = (long[]) container;
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    long w = bits[word];
+                    while (w != 0) {
+                        into[count++] = high | ((word << 6) + Long.numberOfTrailingZeros(w));
+                        w &= w - 1;
+                    }
+                }
+            } else {
+                char[] values = (char[]) container;
+                for (int i = 0; i < cardinalities[index]; i++) {
+                    into[count++] = high | values[i];
+                }
+            }
+        }
+        return count;
+    }
+
+    private void insertContainer(int index, int key) {
+        if (containerCount == keys.length) {
+            int capacity = containerCount * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+        int moved = containerCount - index;
+        System.arraycopy(keys, index, keys, index + 1, moved);
+        System.arraycopy(containers, index, containers, index + 1, moved);
+        System.arraycopy(cardinalities, index, cardinalities, index + 1, moved);
+        keys[index] = key;
+        containers[index] = new char[4];
+        cardinalities[index] = 0;
+        containerCount++;
+    }
+
+    private void removeContainer(int index) {
+        int moved = containerCount - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, moved);
+        System.arraycopy(containers, index + 1, containers, index, moved);
+        System.arraycopy(cardinalities, index + 1, cardinalities, index, moved);
+        containerCount--;
+        containers[containerCount] = null;
+    }
+
+    private static long[] toBitmap(char[] values, int cardinality) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (int i = 0; i < cardinality; i++) {
+            bits[values[i] >>> 6] |= 1L << values[i];
+        }
+        return bits;
+    }
+
+    private static char[] toArray(long[] bits, int cardinality) {
+        char[] values = new char[cardinality];
+        int next = 0;
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                values[next++] = (char) ((word << 6) + Long.numberOfTrailingZeros(w));
+                w &= w - 1;
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Walks the containers in key order. For array containers the position is
+     * an index into the array; for bitmaps it is the next low value to test.
+     */
+    private class BitmapIterator implements PrimitiveIterator.OfInt {
+        private int containerIndex;
+        private int position;
+        private int next;
+        private boolean hasNext;
+
+        BitmapIterator(int fromUserId) {
+            int fromKey = fromUserId >>> 16;
+            containerIndex = Arrays.binarySearch(keys, 0, containerCount, fromKey);
+            if (containerIndex < 0) {
+                containerIndex = -containerIndex - 1;
+                position = 0;
+            } else if (containers[containerIndex] instanceof long[]) {
+                position = fromUserId & 0xFFFF;
+            } else {
+                int found = Arrays.binarySearch((char[]) containers[containerIndex], 0,
+                        cardinalities[containerIndex], (char) fromUserId);
+                position = found >= 0 ? found : -found - 1;
+            }
+            advance();
+        }
+
+        private void advance() {
+            while (containerIndex < containerCount) {
+                Object container = containers[containerIndex];
+                int high = keys[containerIndex] << 16;
+                if (container instanceof long[]) {
+                    long[] bits = (long[]) container;
+                    while (position < 65536) {
+                        long w = bits[position >>> 6] & (-1L << position);
+                        if (w != 0) {
+                            int low = ((position >>> 6) << 6) + Long.numberOfTrailingZeros(w);
+                            next = high | low;
+                            position = low + 1;
+                            hasNext = true;
+                            return;
+                        }
+                        position = ((position >>> 6) + 1) << 6;
+                    }
+                } else if (position < cardinalities[containerIndex]) {
+                    next = high | ((char[]) container)[position++];
+                    hasNext = true;
+                    return;
+                }
+                containerIndex++;
+                position = 0;
+            }
+            hasNext = false;
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public int nextInt() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            int result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+/*
+ * The broadcast builder class is a reusable, mutable stand-in for a
+ * Broadcast, used by the allocation-free execution mode. Each command thread
+ * has one builder (see current()); a command writes its result into it with
+ * Command.updateServerModel(model, builder), and the output stage drains it
+ * before the next command runs.
+ *
+ * Results that allocation-free commands produce (an error, or an OKAY to a
+ * set of user IDs) are recorded as plain fields and an int[] of recipient
+ * IDs that is grown once and then reused, so in steady state building a
+ * result allocates nothing. Commands without an allocation-free path hand
+ * over an ordinary Broadcast instead, which the builder just carries.
+ */
+
+public final class BroadcastBuilder {
+
+    public enum Kind { EMPTY, OKAY, ERROR, BROADCAST }
+
+    private static final ThreadLocal<BroadcastBuilder> CURRENT =
+            ThreadLocal.withInitial(BroadcastBuilder::new);
+
+    private Kind kind;
+    private Command command;
+    private ServerError error;
+    private Broadcast broadcast;
+    private int[] recipients;
+    private int recipientCount;
+
+    public BroadcastBuilder() {
+        this.recipients = new int[64];
+        reset();
+    }
+
+    /**
+     * @return The builder of the calling thread
+     */
+    public static BroadcastBuilder current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Clears the builder for the next command. Called by the output stage once it has drained the
+     * previous result.
+     */
+    public void reset() {
+        kind = Kind.EMPTY;
+        command = null;
+        error = null;
+        broadcast = null;
+        recipientCount = 0;
+    }
+
+    public void error(Command command, ServerError error) {
+        this.kind = Kind.ERROR;
+        this.command = command;
+        this.error = error;
+    }
+
+    /**
+     * Starts an OKAY result. The recipients are then written into {@link #recipientBuffer(int)}
+     * and counted with {@link #setRecipientCount(int)}.
+     */
+    public void okay(Command command) {
+        this.kind = Kind.OKAY;
+        this.command = command;
+    }
+
+    public void broadcast(Broadcast broadcast) {
+        this.kind = Kind.BROADCAST;
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * @param capacity The number of recipients about to be written
+     * @return The reusable recipient array, grown if needed to hold {@code capacity} IDs
+     */
+    public int[] recipientBuffer(int capacity) {
+        if (recipients.length < capacity) {
+            recipients = new int[Math.max(capacity, recipients.length * 2)];
+        }
+        return recipients;
+    }
+
+    public void setRecipientCount(int recipientCount) {
+        this.recipientCount = recipientCount;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public ServerError getError() {
+        return error;
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    public int getRecipient(int index) {
+        return recipients[index];
+    }
+
+    /**
+     * Converts the result into an ordinary {@link Broadcast}, for callers that are not on the
+     * allocation-free path. Recipients are resolved to nicknames through the model.
+     *
+     * @param model The model the command ran against
+     * @return The equivalent {@link Broadcast}, or null if the builder is empty
+     */
+    public Broadcast toBroadcast(ServerModel model) {
+        switch (kind) {
+            case ERROR:
+                return Broadcast.error(command, error);
+            case OKAY:
+                Set<String> nicknames = new TreeSet<>();
+                for (int i = 0; i < recipientCount; i++) {
+                    nicknames.add(model.getNickname(recipients[i]));
+                }
+                return Broadcast.okay(command, nicknames);
+            case BROADCAST:
+                return broadcast;
+            default:
+                return null;
+        }
+    }
+}
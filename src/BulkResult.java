@@ -0,0 +1,70 @@
+import java.util.*;
+
+/*
+ * The bulk result class records what happened to each target of a bulk
+ * command (MINVITE, MKICK or MJOIN): ServerError.OKAY for a target that was
+ * applied, or the error that kept it from being applied. The command's
+ * Broadcast covers the targets that succeeded; the output stage reports the
+ * per-target outcomes to the sender from this result. A command whose targets
+ * have different audiences (MJOIN) also records one Broadcast per target,
+ * which the output stage sends after the command's own.
+ */
+
+public class BulkResult {
+    private final Map<String, ServerError> outcomes;
+    private final Map<String, Broadcast> broadcasts;
+
+    public BulkResult() {
+        this.outcomes = new LinkedHashMap<String, ServerError>();
+        this.broadcasts = new LinkedHashMap<String, Broadcast>();
+    }
+
+    void record(String target, ServerError outcome) {
+        outcomes.put(target, outcome);
+    }
+
+    void recordBroadcast(String target, Broadcast broadcast) {
+        broadcasts.put(target, broadcast);
+    }
+
+    /**
+     * @return The Broadcast for each target that has its own, in the order the targets were
+     *         given; empty for commands whose Broadcast covers every target
+     */
+    public Map<String, Broadcast> getBroadcasts() {
+        return Collections.unmodifiableMap(broadcasts);
+    }
+
+    /**
+     * @return The outcome of every target, in the order the targets were given
+     */
+    public Map<String, ServerError> getOutcomes() {
+        return Collections.unmodifiableMap(outcomes);
+    }
+
+    /**
+     * @return The targets that were applied, in order
+     */
+    public List<String> getSucceeded() {
+        List<String> succeeded = new ArrayList<String>();
+        for (Map.Entry<String, ServerError> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() == ServerError.OKAY) {
+                succeeded.add(outcome.getKey());
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return The targets that failed, with their errors, in order
+     */
+    public Map<String, ServerError> getFailed() {
+        Map<String, ServerError> failed = new LinkedHashMap<String, ServerError>();
+        for (Map.Entry<String, ServerError> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() != ServerError.OKAY) {
+                failed.put(outcome.getKey(), outcome.getValue());
+            }
+        }
+        return failed;
+    }
+}
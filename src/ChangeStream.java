@@ -0,0 +1,154 @@
+import java.io.*;
+
+/*
+ * The change stream class records, in order, every change the command
+ * thread makes to the users and channels that snapshots and replicas see:
+ * users registered, renamed and removed, channels created and removed, and
+ * members joining and leaving. The changes of one command are collected
+ * into a batch, and the batch is handed to the sink when the model
+ * publishes, tagged with the epoch of the snapshot it produces. A replica
+ * that applies every batch in order, starting from a snapshot, ends up with
+ * exactly the primary's snapshot of the same epoch.
+ *
+ * Batches are encoded with DataOutputStream: an op byte, then the user ID
+ * and/or channel name the op is about. Used from the command thread only.
+ */
+
+public class ChangeStream {
+    static final int USER_PUT = 1;
+    static final int USER_REMOVE = 2;
+    static final int CHANNEL_ADD = 3;
+    static final int CHANNEL_REMOVE = 4;
+    static final int MEMBER_ADD = 5;
+    static final int MEMBER_REMOVE = 6;
+
+    /**
+     * Receives the batches of the stream, in epoch order, on the command thread.
+     */
+    public interface Sink {
+        void batch(long epoch, byte[] changes);
+    }
+
+    private final Sink sink;
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream out;
+
+    public ChangeStream(Sink sink) {
+        this.sink = sink;
+        this.buffer = new ByteArrayOutputStream(256);
+        this.out = new DataOutputStream(buffer);
+    }
+
+    public void userPut(int userId, String nickname) {
+        try {
+            out.writeByte(USER_PUT);
+            out.writeInt(userId);
+            out.writeUTF(nickname);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void userRemoved(int userId) {
+        try {
+            out.writeByte(USER_REMOVE);
+            out.writeInt(userId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void channelAdded(String channelName, int owner, boolean inviteOnly) {
+        try {
+            out.writeByte(CHANNEL_ADD);
+            out.writeUTF(channelName);
+            out.writeInt(owner);
+            out.writeBoolean(inviteOnly);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void channelRemoved(String channelName) {
+        try {
+            out.writeByte(CHANNEL_REMOVE);
+            out.writeUTF(channelName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void memberAdded(String channelName, int userId) {
+        member(MEMBER_ADD, channelName, userId);
+    }
+
+    public void memberRemoved(String channelName, int userId) {
+        member(MEMBER_REMOVE, channelName, userId);
+    }
+
+    /**
+     * Ends the batch of the current command and hands it to the sink.
+     *
+     * @param epoch The epoch of the snapshot the batch produces
+     */
+    public void commit(long epoch) {
+        byte[] changes = buffer.toByteArray();
+        buffer.reset();
+        sink.batch(epoch, changes);
+    }
+
+    /**
+     * Applies a batch to the persistent indexes of a snapshot.
+     *
+     * @param snapshot The snapshot as of the epoch before the batch
+     * @param epoch The epoch of the batch
+     * @param changes The encoded batch
+     * @return The snapshot as of the batch's epoch
+     */
+    public static ModelSnapshot apply(ModelSnapshot snapshot, long epoch, byte[] changes)
+            throws IOException {
+        PersistentSortedMap<Integer, String> users = snapshot.getUserIndex();
+        PersistentSortedMap<String, ChannelSnapshot> channels = snapshot.getChannelIndex();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(changes));
+        int op;
+        while ((op = in.read()) >= 0) {
+            switch (op) {
+                case USER_PUT:
+                    users = users.put(in.readInt(), in.readUTF());
+                    break;
+                case USER_REMOVE:
+                    users = users.remove(in.readInt());
+                    break;
+                case CHANNEL_ADD:
+                    String added = in.readUTF();
+                    channels = channels.put(added, 
+                            new ChannelSnapshot(added, in.readInt(), in.readBoolean()));
+                    break;
+                case CHANNEL_REMOVE:
+                    channels = channels.remove(in.readUTF());
+                    break;
+                case MEMBER_ADD:
+                    String joined = in.readUTF();
+                    channels = channels.put(joined, channels.get(joined).withMember(in.readInt()));
+                    break;
+                case MEMBER_REMOVE:
+                    String left = in.readUTF();
+                    channels = channels.put(left, channels.get(left).withoutMember(in.readInt()));
+                    break;
+                default:
+                    throw new IOException("corrupt change batch: op " + op);
+            }
+        }
+        return new ModelSnapshot(epoch, users, channels);
+    }
+
+    private void member(int op, String channelName, int userId) {
+        try {
+            out.writeByte(op);
+            out.writeUTF(channelName);
+            out.writeInt(userId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -10,17 +10,59 @@ import java.util.*;
  */
 
 public class Channel implements Comparable<Channel>{
-    private Set<Integer> users;
+    /*
+     * Channels with more members than LARGE_CHANNEL_THRESHOLD keep their
+     * members in a compressed bitmap; they go back to a TreeSet once they
+     * shrink below half of it, so a channel hovering at the limit does not
+     * convert on every join and leave.
+     */
+    static final int LARGE_CHANNEL_THRESHOLD = 1024;
+    
+    private MemberSet users;
     private final Integer owner;
     private final boolean channelPrivacy;
     private final String name;
+    private final TokenBucket messageBucket;
+    private final MembershipLog membershipLog;
+    
+    /*
+     * The nicknames of the members, resolved once and reused by every message until the
+     * membership changes or a member is renamed; null when it needs rebuilding.
+     */
+    private Set<String> namesView;
+    
+    /*
+     * Hot channels (see ServerModel.recordMessage) keep their member IDs encoded once in an
+     * array that every message shares until the membership changes.
+     */
+    private final DecayingRate messageRate;
+    private boolean hot;
+    private int[] hotMembers;
     
     public Channel(Integer owner, String name, boolean privateChannel) {
-        this.users = new TreeSet<Integer>();
+        this(owner, name, privateChannel, null);
+    }
+    
+    public Channel(Integer owner, String name, boolean privateChannel, OffHeapArena arena) {
+        this(owner, name, privateChannel, arena, 0);
+    }
+    
+    /*
+     * Channels built with an arena keep their members off-heap in that arena for their whole
+     * life, whatever their size. The incarnation numbers the channel's membership versions
+     * (see MembershipLog).
+     */
+    public Channel(Integer owner, String name, boolean privateChannel, OffHeapArena arena,
+                   long incarnation) {
+        this.users = arena == null ? new TreeMemberSet() : new OffHeapMemberSet(arena);
         this.owner = owner;
         users.add(owner);
         this.channelPrivacy = privateChannel;
         this.name = name;
+        this.messageBucket = new TokenBucket(ServerModel.CHANNEL_MESSAGE_BURST, 
+                                             ServerModel.CHANNEL_MESSAGES_PER_SECOND);
+        this.membershipLog = new MembershipLog(incarnation);
+        this.messageRate = new DecayingRate();
     }
     
     public int getOwner() {
@@ -33,20 +75,115 @@ public class Channel implements Comparable<Channel>{
     
     public Set<Integer> getUsers() {
         Set<Integer> newSet = new TreeSet<>();
-        newSet.addAll(this.users);
+        PrimitiveIterator.OfInt members = users.iteratorFrom(0);
+        while (members.hasNext()) {
+            newSet.add(members.nextInt());
+        }
         return newSet;
     }
     
+    public int[] getUserIds() {
+        if (hot) {
+            if (hotMembers == null) {
+                hotMembers = new int[users.size()];
+                users.copyTo(hotMembers);
+            }
+            return hotMembers;
+        }
+        int[] userIds = new int[users.size()];
+        users.copyTo(userIds);
+        return userIds;
+    }
+    
+    public int copyUserIds(int[] into) {
+        return users.copyTo(into);
+    }
+    
+    public boolean hasUser(int userId) {
+        return users.contains(userId);
+    }
+    
+    public PrimitiveIterator.OfInt usersFrom(int fromUserId) {
+        return users.iteratorFrom(fromUserId);
+    }
+    
+    public boolean isLarge() {
+        return users instanceof BitmapMemberSet 
+                || (users instanceof OffHeapMemberSet && size() > LARGE_CHANNEL_THRESHOLD);
+    }
+    
+    /**
+     * Frees the membership storage of a channel that is being removed from the server.
+     */
+    public void destroy() {
+        users.release();
+    }
+    
+    public MembershipLog getMembershipLog() {
+        return membershipLog;
+    }
+    
+    public Set<String> getNamesView() {
+        return namesView;
+    }
+    
+    public void setNamesView(Set<String> namesView) {
+        this.namesView = namesView;
+    }
+    
+    public void invalidateNames() {
+        this.namesView = null;
+    }
+    
+    public DecayingRate getMessageRate() {
+        return messageRate;
+    }
+    
+    public boolean isHot() {
+        return hot;
+    }
+    
+    public void setHot(boolean hot) {
+        this.hot = hot;
+        this.hotMembers = null;
+    }
+    
+    public TokenBucket getMessageBucket() {
+        return messageBucket;
+    }
+    
     public int size() {
         return users.size();
     }
     
-    public void removeUser(Integer userId) {
-        users.remove(userId);
+    public boolean removeUser(Integer userId) {
+        boolean removed = users.remove(userId);
+        if (removed) {
+            hotMembers = null;
+        }
+        if (users instanceof BitmapMemberSet && users.size() < LARGE_CHANNEL_THRESHOLD / 2) {
+            users = copyInto(new TreeMemberSet());
+        }
+        return removed;
+    }
+    
+    public boolean addUser(int userId) {
+        boolean added = users.add(userId);
+        if (added) {
+            hotMembers = null;
+        }
+        if (users instanceof TreeMemberSet && users.size() > LARGE_CHANNEL_THRESHOLD) {
+            users = copyInto(new BitmapMemberSet());
+        }
+        return added;
     }
     
-    public void addUser(int userId) {
-        users.add(userId);
+    private MemberSet copyInto(MemberSet newUsers) {
+        PrimitiveIterator.OfInt members = users.iteratorFrom(0);
+        while (members.hasNext()) {
+            newUsers.add(members.nextInt());
+        }
+        return newUsers;
     }
     
     public boolean isPrivate() {
@@ -0,0 +1,29 @@
+import java.util.*;
+
+/*
+ * One page of a channel LIST. The cursor is the last channel name on the
+ * page: the next page is requested with it and starts just after it. A
+ * nextCursor of null means there are no more matching channels.
+ */
+
+public class ChannelPage {
+    private final List<String> channelNames;
+    private final String nextCursor;
+
+    public ChannelPage(List<String> channelNames, String nextCursor) {
+        this.channelNames = Collections.unmodifiableList(channelNames);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<String> getChannelNames() {
+        return channelNames;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * An immutable view of one channel as of a ModelSnapshot: its name, owner,
+ * privacy and member IDs. Adding or removing a member returns a new
+ * ChannelSnapshot that shares the unchanged part of the member set.
+ */
+
+public final class ChannelSnapshot {
+    private final String name;
+    private final int owner;
+    private final boolean inviteOnly;
+    private final PersistentSortedMap<Integer, Boolean> members;
+
+    public ChannelSnapshot(String name, int owner, boolean inviteOnly) {
+        this(name, owner, inviteOnly, 
+             PersistentSortedMap.<Integer, Boolean>empty().put(owner, Boolean.TRUE));
+    }
+
+    private ChannelSnapshot(String name, int owner, boolean inviteOnly,
+                            PersistentSortedMap<Integer, Boolean> members) {
+        this.name = name;
+        this.owner = owner;
+        this.inviteOnly = inviteOnly;
+        this.members = members;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOwner() {
+        return owner;
+    }
+
+    public boolean isInviteOnly() {
+        return inviteOnly;
+    }
+
+    public PersistentSortedMap<Integer, Boolean> getMembers() {
+        return members;
+    }
+
+    public ChannelSnapshot withMember(int userId) {
+        return new ChannelSnapshot(name, owner, inviteOnly, members.put(userId, Boolean.TRUE));
+    }
+
+    public ChannelSnapshot withoutMember(int userId) {
+        return new ChannelSnapshot(name, owner, inviteOnly, members.remove(userId));
+    }
+}
@@ -1,3 +1,4 @@
+import java.util.*;
 
 
 /**
@@ -51,6 +52,20 @@ public abstract class Command {
      */
     public abstract Broadcast updateServerModel(ServerModel model);
 
+    /**
+     * Processes the command and writes the result into a reusable {@link BroadcastBuilder} rather
+     * than returning a new {@link Broadcast}. Commands with an allocation-free path override this;
+     * by default the command runs {@link #updateServerModel(ServerModel)} and hands the result to
+     * the builder.
+     *
+     * @param model An instance of the {@link ServerModel} class which represents the current
+     *              state of the server.
+     * @param out The builder to write the result into, drained by the output stage
+     */
+    public void updateServerModel(ServerModel model, BroadcastBuilder out) {
+        out.broadcast(updateServerModel(model));
+    }
+
     /**
      * Returns {@code true} if two {@code Command}s are equal; that is, they produce the same string
      * representation.
@@ -119,8 +134,12 @@ class CreateCommand extends Command {
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
+        if (!model.admitCreate(this.getSenderId())) {
+            return Broadcast.error(this, ServerError.RATE_LIMITED);
+        }
         if (ServerModel.isValidName(this.channel)) {
-            return model.createChannel( this.channel, this.getSenderId(), this.getSender(), this);
+            return model.createChannel(this.channel, this.getSenderId(), this.getSender(), 
+                                       this.inviteOnly, this);
         }
         return Broadcast.error(this, ServerError.INVALID_NAME);
     }
@@ -182,8 +201,20 @@ class MessageCommand extends Command {
 
     @Override
     public Broadcast updateServerModel(ServerModel model) {
+        if (!model.admitMessage(this.getSenderId(), this.channel)) {
+            return Broadcast.error(this, ServerError.RATE_LIMITED);
+        }
         return model.message(this.channel, this.getSender(), this);
     }
+
+    @Override
+    public void updateServerModel(ServerModel model, BroadcastBuilder out) {
+        if (!model.admitMessage(this.getSenderId(), this.channel)) {
+            out.error(this, ServerError.RATE_LIMITED);
+            return;
+        }
+        model.message(this.channel, this.getSenderId(), this, out);
+    }
     
     public String getChannel() {
         return channel;
@@ -195,6 +226,159 @@ class MessageCommand extends Command {
     }
 }
 
+/**
+ * Represents a {@link Command} issued by a client to send a message straight to another user,
+ * without a channel.
+ */
+class DirectMessageCommand extends Command {
+    private String recipient;
+    private String message;
+
+    public DirectMessageCommand(int senderId, String sender, String recipient, String message) {
+        super(senderId, sender);
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        if (!model.admitMessage(this.getSenderId(), null)) {
+            return Broadcast.error(this, ServerError.RATE_LIMITED);
+        }
+        return model.directMessage(this.recipient, this.getSender(), this);
+    }
+
+    @Override
+    public void updateServerModel(ServerModel model, BroadcastBuilder out) {
+        if (!model.admitMessage(this.getSenderId(), null)) {
+            out.error(this, ServerError.RATE_LIMITED);
+            return;
+        }
+        model.directMessage(this.recipient, this.getSenderId(), this, out);
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s DMSG %s :%s", getSender(), recipient, message);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to catch up on the membership of a channel it
+ * is in. The client sends the membership version it last saw; an OKAY reply is answered with
+ * {@link ServerModel#getMembershipDelta(String, long)}, which lists only the joins and leaves
+ * since that version, or a full snapshot if the client is too far behind.
+ */
+class SyncCommand extends Command {
+    private String channel;
+    private long sinceVersion;
+
+    public SyncCommand(int senderId, String sender, String channel, long sinceVersion) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.sinceVersion = sinceVersion;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.sync(this.channel, this.getSenderId(), this.getSender(), this);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s SYNC %s %d", getSender(), channel, sinceVersion);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to browse the channels on the server. The client
+ * sends a name prefix (empty for all channels) and the cursor of the page it wants (null for the
+ * first page); an OKAY reply is answered with
+ * {@link ServerModel#listChannels(String, String, int)}.
+ */
+class ListCommand extends Command {
+    static final int PAGE_SIZE = 100;
+
+    private String prefix;
+    private String cursor;
+
+    public ListCommand(int senderId, String sender, String prefix, String cursor) {
+        super(senderId, sender);
+        this.prefix = prefix;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.list(this.prefix, this.getSender(), this);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        if (cursor == null) {
+            return String.format(":%s LIST %s", getSender(), prefix);
+        }
+        return String.format(":%s LIST %s %s", getSender(), prefix, cursor);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to page through the members of a channel it is
+ * in. Large channels do not send NAMES on join, so this is how their members learn who else is
+ * there. The client sends the cursor of the page it wants (0 for the first page); an OKAY reply
+ * is answered with {@link ServerModel#getUsersPage(String, int, int)}.
+ */
+class NamesCommand extends Command {
+    static final int PAGE_SIZE = 500;
+
+    private String channel;
+    private int cursor;
+
+    public NamesCommand(int senderId, String sender, String channel, int cursor) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.names(this.channel, this.getSenderId(), this.getSender(), this);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s NAMES %s %d", getSender(), channel, cursor);
+    }
+}
+
 /**
  * Represents a {@link Command} issued by a client to leave a channel.
  */
@@ -280,3 +464,152 @@ class KickCommand extends Command {
     }
 }
 
+/**
+ * Base class of the bulk {@link Command}s, which apply one operation to a list of targets (users
+ * or channels) at once. The channel-level checks are done once for the whole list, the changes
+ * are applied as one batch, and the outcome of each target is recorded in a {@link BulkResult}
+ * for the output stage to report back to the sender.
+ */
+abstract class BulkCommand extends Command {
+    private List<String> targets;
+    private BulkResult result;
+
+    BulkCommand(int senderId, String sender, List<String> targets) {
+        super(senderId, sender);
+        this.targets = targets;
+        this.result = new BulkResult();
+    }
+
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return The per-target outcomes, filled in when the command runs
+     */
+    public BulkResult getResult() {
+        return result;
+    }
+
+    String joinedTargets() {
+        return String.join(",", targets);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to invite many users to a private channel owned
+ * by the sender.
+ */
+class BulkInviteCommand extends BulkCommand {
+    private String channel;
+
+    public BulkInviteCommand(int senderId, String sender, String channel, 
+                             List<String> usersToInvite) {
+        super(senderId, sender, usersToInvite);
+        this.channel = channel;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.inviteAll(this.channel, this.getSender(), this, this.getTargets(), 
+                               this.getResult());
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s MINVITE %s %s", getSender(), channel, joinedTargets());
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to remove many users from a channel owned by the
+ * sender.
+ */
+class BulkKickCommand extends BulkCommand {
+    private String channel;
+
+    public BulkKickCommand(int senderId, String sender, String channel, 
+                           List<String> usersToKick) {
+        super(senderId, sender, usersToKick);
+        this.channel = channel;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.kickAll(this.channel, this.getSender(), this, this.getTargets(), 
+                             this.getResult());
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s MKICK %s %s", getSender(), channel, joinedTargets());
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to join many public channels at once. The OKAY
+ * reply goes to the sender alone and is followed by the JOIN of each joined channel, taken from
+ * {@link BulkResult#getBroadcasts()}.
+ */
+class BulkJoinCommand extends BulkCommand {
+
+    public BulkJoinCommand(int senderId, String sender, List<String> channels) {
+        super(senderId, sender, channels);
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.joinAll(this.getTargets(), this.getSenderId(), this.getSender(), this, 
+                             this.getResult());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s MJOIN %s", getSender(), joinedTargets());
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to send the same message to several channels at
+ * once. Each recipient receives the message once, however many of the channels it is in.
+ */
+class MultiMessageCommand extends BulkCommand {
+    private String message;
+
+    public MultiMessageCommand(int senderId, String sender, List<String> channels, 
+                               String message) {
+        super(senderId, sender, channels);
+        this.message = message;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        if (!model.admitMessage(this.getSenderId(), null)) {
+            return Broadcast.error(this, ServerError.RATE_LIMITED);
+        }
+        return model.messageAll(this.getTargets(), this.getSenderId(), this.getSender(), this, 
+                                this.getResult());
+    }
+
+    @Override
+    public void updateServerModel(ServerModel model, BroadcastBuilder out) {
+        if (!model.admitMessage(this.getSenderId(), null)) {
+            out.error(this, ServerError.RATE_LIMITED);
+            return;
+        }
+        model.messageAll(this.getTargets(), this.getSenderId(), this, this.getResult(), out);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s MMESG %s :%s", getSender(), joinedTargets(), message);
+    }
+}
@@ -0,0 +1,273 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/*
+ * The command scheduler class is the queue between the connections and the
+ * command thread. Connection threads offer commands as they are parsed; the
+ * command thread takes them one by one and runs them against the model.
+ *
+ * Commands are served fairly across senders with deficit round robin: each
+ * sender has its own queue, the senders with something queued take turns,
+ * and every turn earns a sender QUANTUM units of credit, which it spends on
+ * commands costing one unit each (a bulk command costs one per target). A
+ * user flooding MESG therefore only delays everyone else by its fair share.
+ *
+ * There are two classes of commands, each scheduled that way: messages
+ * (MESG, MMESG and DMSG), and control commands (everything else, including
+ * moderation such as KICK and INVITE). Control commands are served first,
+ * so they never wait behind a message flood for longer than one command.
+ * Messages are still served once the oldest of them has waited
+ * MAX_MESSAGE_DELAY_NANOS, so a stream of control commands cannot starve
+ * them either; while control commands are waiting, such overdue messages
+ * take turns with them one for one, so the escape cannot starve control. Each sender may have at most MAX_QUEUED_PER_SENDER commands
+ * waiting; offer refuses more.
+ *
+ * If an AdmissionControl is attached, the scheduler reports to it how long
+ * each command it hands out has waited, and when it hands out the last one.
+ */
+
+public class CommandScheduler {
+    static final int QUANTUM = 4;
+    static final int MAX_QUEUED_PER_SENDER = 1024;
+    static final long MAX_MESSAGE_DELAY_NANOS = 50_000_000L;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final LongSupplier clock;
+    private final Lane control;
+    private final Lane messages;
+    private boolean overdueServed;
+    private AdmissionControl admission;
+
+    public CommandScheduler() {
+        this(System::nanoTime);
+    }
+
+    public CommandScheduler(LongSupplier clock) {
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.clock = clock;
+        this.control = new Lane();
+        this.messages = new Lane();
+    }
+
+    /**
+     * Starts or stops reporting queue sojourn times to an {@link AdmissionControl}.
+     *
+     * @param admission The admission control to report to, or null to stop
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        lock.lock();
+        try {
+            this.admission = admission;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a command. Called from connection threads.
+     *
+     * @param command The command to queue
+     * @return true if the command was queued, false if its sender already has
+     *         {@link #MAX_QUEUED_PER_SENDER} commands waiting
+     */
+    public boolean offer(Command command) {
+        lock.lock();
+        try {
+            if (!laneOf(command).add(command, clock.getAsLong())) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next command to run, if there is one.
+     *
+     * @return The next command, or null if nothing is queued
+     */
+    public Command poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next command to run, waiting up to the given time for one to be queued.
+     *
+     * @return The next command, or null if none was queued in time
+     */
+    public Command poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            Command command;
+            while ((command = next()) == null) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return command;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of commands waiting
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return control.size + messages.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * The number of entries the lanes' arrival queues still hold, served or not.
+     */
+    int trackedArrivals() {
+        lock.lock();
+        try {
+            return control.arrivals.size() + messages.arrivals.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Command next() {
+        long now = clock.getAsLong();
+        Entry entry;
+        if (messages.size > 0 
+                && (control.size == 0 
+                    || !overdueServed
+                       && now - messages.oldestArrival() >= MAX_MESSAGE_DELAY_NANOS)) {
+            overdueServed = control.size > 0;
+            entry = messages.next();
+        } else if (control.size > 0) {
+            overdueServed = false;
+            entry = control.next();
+        } else {
+            return null;
+        }
+        if (admission != null) {
+            admission.recordSojourn(now - entry.arrival, now);
+            if (control.size + messages.size == 0) {
+                admission.queueEmptied(now);
+            }
+        }
+        return entry.command;
+    }
+
+    private Lane laneOf(Command command) {
+        return command instanceof MessageCommand || command instanceof MultiMessageCommand 
+                || command instanceof DirectMessageCommand ? messages : control;
+    }
+
+    private static int cost(Command command) {
+        return command instanceof BulkCommand 
+                ? Math.max(1, ((BulkCommand) command).getTargets().size()) : 1;
+    }
+
+    /*
+     * A queued command and when it arrived. The arrival queue of a lane keeps
+     * entries in arrival order; an entry served out of arrival order stays in
+     * it until every entry that arrived before it has been served too.
+     */
+    private static class Entry {
+        final Command command;
+        final long arrival;
+        boolean served;
+
+        Entry(Command command, long arrival) {
+            this.command = command;
+            this.arrival = arrival;
+        }
+    }
+
+    private static class SenderQueue {
+        final int senderId;
+        final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        int deficit;
+
+        SenderQueue(int senderId) {
+            this.senderId = senderId;
+        }
+    }
+
+    /*
+     * One class of commands, scheduled by deficit round robin over the senders
+     * in the active ring.
+     */
+    private static class Lane {
+        final Map<Integer, SenderQueue> senders = new HashMap<Integer, SenderQueue>();
+        final ArrayDeque<SenderQueue> active = new ArrayDeque<SenderQueue>();
+        final ArrayDeque<Entry> arrivals = new ArrayDeque<Entry>();
+        int size;
+
+        boolean add(Command command, long now) {
+            SenderQueue queue = senders.get(command.getSenderId());
+            if (queue == null) {
+                queue = new SenderQueue(command.getSenderId());
+                senders.put(command.getSenderId(), queue);
+            }
+            if (queue.entries.size() >= MAX_QUEUED_PER_SENDER) {
+                return false;
+            }
+            if (queue.entries.isEmpty()) {
+                queue.deficit = 0;
+                active.addLast(queue);
+            }
+            Entry entry = new Entry(command, now);
+            queue.entries.addLast(entry);
+            arrivals.addLast(entry);
+            size++;
+            return true;
+        }
+
+        long oldestArrival() {
+            return arrivals.peekFirst().arrival;
+        }
+
+        Entry next() {
+            while (true) {
+                SenderQueue queue = active.peekFirst();
+                Entry head = queue.entries.peekFirst();
+                if (queue.deficit < cost(head.command)) {
+                    queue.deficit += QUANTUM;
+                    if (queue.deficit < cost(head.command)) {
+                        active.addLast(active.pollFirst());
+                        continue;
+                    }
+                }
+                queue.entries.pollFirst();
+                queue.deficit -= cost(head.command);
+                head.served = true;
+                size--;
+                while (!arrivals.isEmpty() && arrivals.peekFirst().served) {
+                    arrivals.pollFirst();
+                }
+                if (queue.entries.isEmpty()) {
+                    active.pollFirst();
+                    senders.remove(queue.senderId);
+                } else if (queue.deficit < cost(queue.entries.peekFirst().command)) {
+                    active.addLast(active.pollFirst());
+                }
+                return head;
+            }
+        }
+    }
+}
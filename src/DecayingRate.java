@@ -0,0 +1,48 @@
+/*
+ * The decaying rate class estimates how often something happens, such as
+ * messages being sent into a channel, from a single exponentially decaying
+ * counter. Each event adds one to the counter, and the counter halves every
+ * HALF_LIFE_NANOS, so old traffic fades out without keeping any history.
+ * A steady stream of r events per second reads as r; a short burst of n
+ * events reads as at most n / 7 or so, which keeps bursts from looking like
+ * sustained load.
+ *
+ * Not thread-safe; it is updated and read on the command thread.
+ */
+
+public class DecayingRate {
+    static final long HALF_LIFE_NANOS = 5_000_000_000L;
+
+    private static final double DECAY_PER_NANO = Math.log(2) / HALF_LIFE_NANOS;
+
+    private double count;
+    private long lastUpdate;
+    private boolean started;
+
+    /**
+     * Counts one event.
+     *
+     * @param now The current time in nanoseconds
+     */
+    public void record(long now) {
+        count = decayed(now) + 1;
+        lastUpdate = now;
+        started = true;
+    }
+
+    /**
+     * @param now The current time in nanoseconds
+     * @return The estimated number of events per second
+     */
+    public double perSecond(long now) {
+        return decayed(now) * DECAY_PER_NANO * 1e9;
+    }
+
+    private double decayed(long now) {
+        if (!started) {
+            return 0;
+        }
+        long elapsed = Math.max(0, now - lastUpdate);
+        return count * Math.exp(-elapsed * DECAY_PER_NANO);
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.List;
+
+/**
+ * A bot or other server extension that reacts to what happens on the server. Extensions are
+ * registered with an {@link ExtensionHub} and are called on the hub's executor, never on the
+ * command thread, so a slow extension cannot delay commands.
+ */
+public interface Extension {
+
+    /**
+     * Receives the events of one or more commands that have completed, in the order they
+     * happened. If the extension falls behind, the events of several commands are delivered in
+     * one call.
+     *
+     * @param events The events, oldest first; immutable
+     */
+    void onEvents(List<ExtensionEvent> events);
+}
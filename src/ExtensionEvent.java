@@ -0,0 +1,75 @@
+/*
+ * The extension event class describes one thing that happened on the
+ * server, for Extensions: a user connecting, disconnecting or changing its
+ * nickname, a channel being created or removed, a user joining or leaving
+ * a channel, or a message being sent. Events are immutable, and only carry
+ * names and IDs, never live model objects, so extensions may keep them and
+ * read them from any thread.
+ *
+ * CHANNEL_CREATED is reported for the owner, who is then the only member;
+ * CHANNEL_REMOVED implies that every member left, without a LEFT for each.
+ */
+
+public final class ExtensionEvent {
+
+    public enum Kind { CONNECTED, DISCONNECTED, RENAMED, CHANNEL_CREATED, CHANNEL_REMOVED, 
+                       JOINED, LEFT, MESSAGE }
+
+    private final Kind kind;
+    private final int userId;
+    private final String nickname;
+    private final String channel;
+    private final String previousNickname;
+    private final Command command;
+
+    ExtensionEvent(Kind kind, int userId, String nickname, String channel, 
+                   String previousNickname, Command command) {
+        this.kind = kind;
+        this.userId = userId;
+        this.nickname = nickname;
+        this.channel = channel;
+        this.previousNickname = previousNickname;
+        this.command = command;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The user the event is about; the sender of a message, the owner of a channel
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     * @return The channel the event happened in, or null for events outside any channel
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The nickname the user had before a RENAMED event, otherwise null
+     */
+    public String getPreviousNickname() {
+        return previousNickname;
+    }
+
+    /**
+     * @return The message command of a MESSAGE event, otherwise null
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + nickname + (channel == null ? "" : " " + channel);
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The extension hub class hands the events of each completed command to the
+ * registered Extensions, off the command thread. The command thread only
+ * appends the command's batch of events to each extension's bounded queue;
+ * the extension is then called on the hub's executor with everything queued
+ * for it so far, one call at a time, so each extension sees events in order
+ * and never runs concurrently with itself.
+ *
+ * If an extension falls MAX_QUEUED_BATCHES commands behind, further batches
+ * for it are dropped and counted rather than held, so a slow or stuck
+ * extension costs the server neither latency nor unbounded memory.
+ * Exceptions thrown by extensions are counted and otherwise ignored.
+ */
+
+public class ExtensionHub {
+    static final int MAX_QUEUED_BATCHES = 1024;
+
+    private final Executor executor;
+    private final List<Subscription> subscriptions;
+    private final AtomicLong dropped;
+    private final AtomicLong failures;
+
+    /**
+     * @param executor The executor extensions are called on
+     */
+    public ExtensionHub(Executor executor) {
+        this.executor = executor;
+        this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+        this.dropped = new AtomicLong();
+        this.failures = new AtomicLong();
+    }
+
+    public void register(Extension extension) {
+        subscriptions.add(new Subscription(extension));
+    }
+
+    public boolean hasExtensions() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Queues the events of one completed command for every extension. Called on the command
+     * thread; never blocks.
+     *
+     * @param events The events of the command, immutable
+     */
+    public void dispatch(List<ExtensionEvent> events) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(events);
+        }
+    }
+
+    /**
+     * @return The number of batches dropped because an extension had fallen behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of times an extension threw an exception
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /*
+     * One extension, its queue of batches, and whether a call to it is
+     * already scheduled on the executor.
+     */
+    private class Subscription {
+        private final Extension extension;
+        private final BlockingQueue<List<ExtensionEvent>> batches;
+        private final AtomicBoolean scheduled;
+
+        Subscription(Extension extension) {
+            this.extension = extension;
+            this.batches = new ArrayBlockingQueue<List<ExtensionEvent>>(MAX_QUEUED_BATCHES);
+            this.scheduled = new AtomicBoolean();
+        }
+
+        void offer(List<ExtensionEvent> events) {
+            if (!batches.offer(events)) {
+                dropped.incrementAndGet();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!batches.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::run);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private void run() {
+            List<List<ExtensionEvent>> drained = new ArrayList<List<ExtensionEvent>>();
+            batches.drainTo(drained);
+            List<ExtensionEvent> events = new ArrayList<ExtensionEvent>();
+            for (List<ExtensionEvent> batch : drained) {
+                events.addAll(batch);
+            }
+            try {
+                if (!events.isEmpty()) {
+                    extension.onEvents(Collections.unmodifiableList(events));
+                }
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * The fan-out class is responsible for handing a channel's outgoing frame
+ * to the connection of every recipient. Small channels are delivered right
+ * away on the command thread. Channels with at least PARALLEL_THRESHOLD
+ * recipients are split into chunks of CHUNK_SIZE and delivered on a
+ * work-stealing ForkJoinPool, so a single huge channel does not hold up
+ * every other command.
+ *
+ * Deliveries for the same channel are chained one after another: a frame is
+ * only handed out once the previous frame of that channel has reached every
+ * one of its recipients, so each recipient sees a channel's messages in the
+ * order they were sent. Frames of different channels are not ordered.
+ *
+ * Hot channels (see ServerModel.isHot) get a lane instead: a thread of
+ * their own that frames are queued to. The lane drains everything queued
+ * since its last pass in one go, and hands each recipient all of its frames
+ * in one batch, so a busy connection is flushed once per pass rather than
+ * once per message. When the channel cools down the lane finishes what it
+ * has queued and stops, and the channel's next frames wait for it.
+ *
+ * deliver and forget must be called from the command thread; the Deliverer
+ * is called from pool and lane threads and must be safe to call
+ * concurrently.
+ */
+
+public class FanOut {
+    static final int PARALLEL_THRESHOLD = 4096;
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Hands a frame to the connection of one recipient, typically by enqueueing it on that
+     * connection's output queue.
+     */
+    public interface Deliverer {
+        void deliver(int userId, String frame);
+        
+        /**
+         * Hands several frames to one recipient, in order. Connections that can write a batch
+         * with a single flush should override this.
+         */
+        default void deliver(int userId, List<String> frames) {
+            for (String frame : frames) {
+                deliver(userId, frame);
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Map<String, CompletableFuture<Void>> pending;
+    private final Map<String, HotLane> lanes;
+
+    /**
+     * Constructs a {@code FanOut} that runs on the common {@link ForkJoinPool}.
+     */
+    public FanOut() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public FanOut(ForkJoinPool pool) {
+        this.pool = pool;
+        this.pending = new HashMap<String, CompletableFuture<Void>>();
+        this.lanes = new HashMap<String, HotLane>();
+    }
+
+    /**
+     * Delivers a frame to every recipient of a channel.
+     *
+     * @param channelName The channel the frame was sent to
+     * @param recipients The user IDs of the channel members when the frame was sent
+     * @param frame The encoded frame to deliver
+     * @param deliverer The connection output stage
+     * @return A future that completes once every recipient has been handed the frame
+     */
+    public CompletableFuture<Void> deliver(String channelName, int[] recipients, String frame,
+                                           Deliverer deliverer) {
+        return deliver(channelName, recipients, frame, deliverer, false);
+    }
+
+    /**
+     * Delivers a frame to every recipient of a channel, through the channel's own lane if it is
+     * hot.
+     *
+     * @param channelName The channel the frame was sent to
+     * @param recipients The user IDs of the channel members when the frame was sent
+     * @param frame The encoded frame to deliver
+     * @param deliverer The connection output stage
+     * @param hot Whether the model currently considers the channel hot
+     * @return A future that completes once every recipient has been handed the frame
+     */
+    public CompletableFuture<Void> deliver(String channelName, int[] recipients, String frame,
+                                           Deliverer deliverer, boolean hot) {
+        HotLane lane = lanes.get(channelName);
+        if (hot) {
+            if (lane == null) {
+                lane = new HotLane(channelName, pending.remove(channelName));
+                lanes.put(channelName, lane);
+            }
+            return lane.submit(recipients, frame, deliverer);
+        }
+        if (lane != null) {
+            lanes.remove(channelName);
+            pending.put(channelName, lane.stop());
+        }
+        CompletableFuture<Void> previous = pending.get(channelName);
+        boolean idle = previous == null || previous.isDone();
+        if (idle && recipients.length < PARALLEL_THRESHOLD) {
+            pending.remove(channelName);
+            for (int userId : recipients) {
+                deliverer.deliver(userId, frame);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        final DeliverChunk task = new DeliverChunk(recipients, 0, recipients.length, frame, 
+                                                   deliverer);
+        CompletableFuture<Void> next;
+        if (idle) {
+            next = CompletableFuture.runAsync(task::invoke, pool);
+        } else {
+            next = previous.handle((ignored, error) -> (Void) null)
+                           .thenRunAsync(task::invoke, pool);
+        }
+        pending.put(channelName, next);
+        return next;
+    }
+
+    /**
+     * Forgets the delivery chain of a channel that no longer exists.
+     *
+     * @param channelName The name of the removed channel
+     */
+    public void forget(String channelName) {
+        pending.remove(channelName);
+        HotLane lane = lanes.remove(channelName);
+        if (lane != null) {
+            lane.stop();
+        }
+    }
+
+    /**
+     * @return The number of channels that currently have a lane of their own
+     */
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /*
+     * Splits the recipient range in half until it is at most CHUNK_SIZE long,
+     * then delivers that chunk in order. ForkJoinTask is Serializable, but
+     * chunks never leave the pool.
+     */
+    @SuppressWarnings("serial")
+    private static class DeliverChunk extends RecursiveAction {
+        private final int[] recipients;
+        private final int from;
+        private final int to;
+        private final String frame;
+        private final Deliverer deliverer;
+
+        DeliverChunk(int[] recipients, int from, int to, String frame, Deliverer deliverer) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.frame = frame;
+            this.deliverer = deliverer;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    deliverer.deliver(recipients[i], frame);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DeliverChunk(recipients, from, middle, frame, deliverer),
+                      new DeliverChunk(recipients, middle, to, frame, deliverer));
+        }
+    }
+
+    /*
+     * One frame waiting in a hot lane.
+     */
+    private static class QueuedFrame {
+        final int[] recipients;
+        final String frame;
+        final Deliverer deliverer;
+        final CompletableFuture<Void> done;
+
+        QueuedFrame(int[] recipients, String frame, Deliverer deliverer) {
+            this.recipients = recipients;
+            this.frame = frame;
+            this.deliverer = deliverer;
+            this.done = new CompletableFuture<Void>();
+        }
+    }
+
+    /*
+     * The delivery thread of one hot channel. Frames are queued by the command
+     * thread; a drain pass is scheduled whenever the queue goes from idle to
+     * busy. Consecutive frames that share a recipient array (hot channels hand
+     * out the same array until their membership changes) are delivered as one
+     * batch per recipient.
+     */
+    private static class HotLane {
+        private final ExecutorService thread;
+        private final ConcurrentLinkedQueue<QueuedFrame> queue;
+        private final AtomicBoolean scheduled;
+        private final CompletableFuture<Void> before;
+        private CompletableFuture<Void> last;
+
+        HotLane(String channelName, CompletableFuture<Void> before) {
+            this.thread = Executors.newSingleThreadExecutor(task -> {
+                Thread lane = new Thread(task, "fanout-" + channelName);
+                lane.setDaemon(true);
+                return lane;
+            });
+            this.queue = new ConcurrentLinkedQueue<QueuedFrame>();
+            this.scheduled = new AtomicBoolean();
+            this.before = before == null ? CompletableFuture.completedFuture(null)
+                                         : before.handle((ignored, error) -> (Void) null);
+            this.last = this.before;
+        }
+
+        CompletableFuture<Void> submit(int[] recipients, String frame, Deliverer deliverer) {
+            QueuedFrame queued = new QueuedFrame(recipients, frame, deliverer);
+            queue.add(queued);
+            if (scheduled.compareAndSet(false, true)) {
+                thread.execute(this::drain);
+            }
+            last = queued.done;
+            return last;
+        }
+
+        /*
+         * Lets the lane finish what is queued and shuts its thread down.
+         */
+        CompletableFuture<Void> stop() {
+            thread.shutdown();
+            return last;
+        }
+
+        private void drain() {
+            before.join();
+            scheduled.set(false);
+            List<QueuedFrame> batch = new ArrayList<QueuedFrame>();
+            for (QueuedFrame queued; (queued = queue.poll()) != null;) {
+                batch.add(queued);
+            }
+            int start = 0;
+            while (start < batch.size()) {
+                QueuedFrame first = batch.get(start);
+                int end = start + 1;
+                while (end < batch.size() && batch.get(end).recipients == first.recipients
+                        && batch.get(end).deliverer == first.deliverer) {
+                    end++;
+                }
+                List<QueuedFrame> group = batch.subList(start, end);
+                try {
+                    List<String> frames = new ArrayList<String>(group.size());
+                    for (QueuedFrame queued : group) {
+                        frames.add(queued.frame);
+                    }
+                    for (int userId : first.recipients) {
+                        first.deliverer.deliver(userId, frames);
+                    }
+                    for (QueuedFrame queued : group) {
+                        queued.done.complete(null);
+                    }
+                } catch (RuntimeException e) {
+                    for (QueuedFrame queued : group) {
+                        queued.done.completeExceptionally(e);
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/*
+ * The frame compressor class is the sending half of the DEFLATE stream a
+ * connection negotiates at connect. The connection keeps one Deflater for
+ * its whole life and finishes every frame with a sync flush instead of
+ * ending the stream, so each frame can refer back to nicknames and channel
+ * names that earlier frames already carried; that shared history is where
+ * most of the saving on NAMES and LIST pages comes from.
+ *
+ * Each encoded frame starts with one flag byte: RAW for frames shorter than
+ * MIN_COMPRESSED_BYTES, which are sent as plain UTF-8 because deflating them
+ * costs more CPU than it saves bandwidth, and DEFLATED for the rest. The
+ * FrameDecompressor on the other end undoes this.
+ *
+ * A compressor may be used from any output thread, one frame at a time.
+ */
+
+public class FrameCompressor {
+    static final int MIN_COMPRESSED_BYTES = 256;
+    static final byte RAW = 0;
+    static final byte DEFLATED = 1;
+
+    private final Deflater deflater;
+    private final int minCompressedBytes;
+    private final byte[] chunk;
+    private final ByteArrayOutputStream encoded;
+    private long bytesIn;
+    private long bytesOut;
+    private long framesDeflated;
+    private long framesRaw;
+
+    public FrameCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, MIN_COMPRESSED_BYTES);
+    }
+
+    /**
+     * @param level The DEFLATE level, from {@link Deflater#BEST_SPEED} to
+     *              {@link Deflater#BEST_COMPRESSION}
+     * @param minCompressedBytes Frames shorter than this are sent uncompressed
+     */
+    public FrameCompressor(int level, int minCompressedBytes) {
+        this.deflater = new Deflater(level, true);
+        this.minCompressedBytes = minCompressedBytes;
+        this.chunk = new byte[8192];
+        this.encoded = new ByteArrayOutputStream(8192);
+    }
+
+    /**
+     * Encodes one frame for the connection.
+     *
+     * @param frame The frame, as it would be sent uncompressed
+     * @return The bytes to write to the connection
+     */
+    public synchronized byte[] compress(String frame) {
+        byte[] raw = frame.getBytes(StandardCharsets.UTF_8);
+        encoded.reset();
+        if (raw.length < minCompressedBytes) {
+            encoded.write(RAW);
+            encoded.write(raw, 0, raw.length);
+            framesRaw++;
+        } else {
+            encoded.write(DEFLATED);
+            deflater.setInput(raw);
+            int written;
+            do {
+                written = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                encoded.write(chunk, 0, written);
+            } while (written == chunk.length);
+            framesDeflated++;
+        }
+        bytesIn += raw.length;
+        bytesOut += encoded.size();
+        return encoded.toByteArray();
+    }
+
+    /**
+     * @return The number of uncompressed frame bytes handed to the compressor
+     */
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return The number of bytes the compressor produced, flag bytes included
+     */
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    public synchronized long getFramesDeflated() {
+        return framesDeflated;
+    }
+
+    public synchronized long getFramesRaw() {
+        return framesRaw;
+    }
+
+    /**
+     * Releases the native memory of the compression context. Called when the connection closes.
+     */
+    public synchronized void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * The frame decompressor class is the receiving half of a connection's
+ * DEFLATE stream (see FrameCompressor). It keeps one Inflater for the whole
+ * connection, so frames must be decoded in the order they were encoded.
+ */
+
+public class FrameDecompressor {
+    private final Inflater inflater;
+    private final byte[] chunk;
+    private final ByteArrayOutputStream decoded;
+
+    public FrameDecompressor() {
+        this.inflater = new Inflater(true);
+        this.chunk = new byte[8192];
+        this.decoded = new ByteArrayOutputStream(8192);
+    }
+
+    /**
+     * Decodes one frame.
+     *
+     * @param encoded The bytes produced by {@link FrameCompressor#compress(String)}
+     * @return The frame
+     * @throws IllegalArgumentException if the bytes are not a valid frame of this stream
+     */
+    public synchronized String decompress(byte[] encoded) {
+        if (encoded[0] == FrameCompressor.RAW) {
+            return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+        }
+        decoded.reset();
+        inflater.setInput(encoded, 1, encoded.length - 1);
+        try {
+            int read;
+            do {
+                read = inflater.inflate(chunk);
+                decoded.write(chunk, 0, read);
+            } while (read == chunk.length || (read > 0 && !inflater.needsInput()));
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt compressed frame", e);
+        }
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public synchronized void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.*;
+
+/*
+ * The idle sweep class is the outcome of one ServerModel.sweepIdleUsers
+ * call: the users the backend should send a keepalive ping to, and the
+ * disconnect broadcasts of the users that timed out and were deregistered.
+ */
+
+public class IdleSweep {
+    private final int[] pings;
+    private final List<Broadcast> disconnects;
+
+    public IdleSweep(int[] pings, List<Broadcast> disconnects) {
+        this.pings = pings;
+        this.disconnects = disconnects;
+    }
+
+    /**
+     * @return The IDs of the users to ping
+     */
+    public int[] getPings() {
+        return pings;
+    }
+
+    /**
+     * @return One disconnect broadcast per user that timed out
+     */
+    public List<Broadcast> getDisconnects() {
+        return disconnects;
+    }
+}
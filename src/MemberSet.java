@@ -0,0 +1,73 @@
+import java.util.PrimitiveIterator;
+
+/*
+ * A MemberSet holds the user IDs of the members of a channel. Channels start
+ * out with a TreeMemberSet and switch to a BitmapMemberSet once they grow
+ * large, without the rest of the model noticing the difference. When the
+ * model is configured for off-heap membership, channels use an
+ * OffHeapMemberSet instead.
+ */
+
+public interface MemberSet {
+
+    /**
+     * Adds a user ID to the set.
+     *
+     * @param userId The user ID to add
+     * @return true if the user was not already a member
+     */
+    boolean add(int userId);
+
+    /**
+     * Removes a user ID from the set.
+     *
+     * @param userId The user ID to remove
+     * @return true if the user was a member
+     */
+    boolean remove(int userId);
+
+    /**
+     * Checks whether a user ID is in the set.
+     *
+     * @param userId The user ID to look for
+     * @return true if the user is a member
+     */
+    boolean contains(int userId);
+
+    /**
+     * @return The number of members in the set
+     */
+    int size();
+
+    /**
+     * Iterates over the members in ascending order of user ID, starting at the smallest member
+     * greater than or equal to {@code fromUserId}.
+     *
+     * @param fromUserId The smallest user ID to return
+     * @return An iterator over the matching user IDs
+     */
+    PrimitiveIterator.OfInt iteratorFrom(int fromUserId);
+
+    /**
+     * Copies the members, in ascending order, into the start of the given array, which must
+     * hold at least {@link #size()} ints. Implementations do this without allocating.
+     *
+     * @param into The array to fill
+     * @return The number of members copied
+     */
+    default int copyTo(int[] into) {
+        int count = 0;
+        PrimitiveIterator.OfInt members = iteratorFrom(0);
+        while (members.hasNext()) {
+            into[count++] = members.nextInt();
+        }
+        return count;
+    }
+
+    /**
+     * Frees any storage held outside the heap. Called when the channel is destroyed; the set
+     * must not be used afterwards.
+     */
+    default void release() {
+    }
+}
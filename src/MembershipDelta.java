@@ -0,0 +1,50 @@
+import java.util.*;
+
+/*
+ * The answer to a membership sync. Either it lists the users who joined and
+ * left since the client's version, or, when the client is too far behind,
+ * it is a full snapshot of the channel's members. In both cases the client
+ * should remember getVersion() for its next sync.
+ */
+
+public class MembershipDelta {
+    private final long version;
+    private final boolean snapshot;
+    private final Set<String> joined;
+    private final Set<String> left;
+
+    private MembershipDelta(long version, boolean snapshot, Set<String> joined, 
+                            Set<String> left) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.joined = Collections.unmodifiableSet(joined);
+        this.left = Collections.unmodifiableSet(left);
+    }
+
+    public static MembershipDelta changes(long version, Set<String> joined, Set<String> left) {
+        return new MembershipDelta(version, false, joined, left);
+    }
+
+    public static MembershipDelta snapshot(long version, Set<String> members) {
+        return new MembershipDelta(version, true, members, new TreeSet<String>());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if {@link #getJoined()} is the complete member list rather than a change list
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public Set<String> getJoined() {
+        return joined;
+    }
+
+    public Set<String> getLeft() {
+        return left;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.*;
+
+/*
+ * The membership log class keeps the most recent joins and leaves of a
+ * channel in a fixed-size ring, together with the channel's membership
+ * version. The version goes up by one on every join or leave, so a client
+ * that remembers the version it last saw can ask for just the changes made
+ * since then. Once more than CAPACITY changes have happened, the oldest ones
+ * are overwritten and such a client needs a full snapshot instead. Most
+ * channels never see that many changes, so the ring starts empty and
+ * doubles from INITIAL_CAPACITY up to CAPACITY as changes arrive.
+ *
+ * A channel that is removed and created again gets a new log, numbered from
+ * a later incarnation, so a version seen in the old channel is never taken
+ * for one in the new channel: each incarnation's versions start at the
+ * incarnation shifted up by INCARNATION_SHIFT bits.
+ */
+
+public class MembershipLog {
+    static final int CAPACITY = 256;
+    static final int INITIAL_CAPACITY = 8;
+    static final int INCARNATION_SHIFT = 32;
+
+    private static final String[] NO_NICKNAMES = new String[0];
+    private static final boolean[] NO_JOINS = new boolean[0];
+
+    private String[] nicknames;
+    private boolean[] joins;
+    private final long firstVersion;
+    private long version;
+
+    /**
+     * @param incarnation How many channels the model had created before this one
+     */
+    public MembershipLog(long incarnation) {
+        this.nicknames = NO_NICKNAMES;
+        this.joins = NO_JOINS;
+        this.firstVersion = incarnation << INCARNATION_SHIFT;
+        this.version = firstVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void recordJoin(String nickname) {
+        record(nickname, true);
+    }
+
+    public void recordLeave(String nickname) {
+        record(nickname, false);
+    }
+
+    /*
+     * The ring only grows while it has never wrapped, so every change so far sits at the index of
+     * its offset from firstVersion and copying the arrays keeps it there.
+     */
+    private void record(String nickname, boolean join) {
+        if (version - firstVersion == nicknames.length && nicknames.length < CAPACITY) {
+            int length = Math.min(CAPACITY, Math.max(INITIAL_CAPACITY, 2 * nicknames.length));
+            nicknames = Arrays.copyOf(nicknames, length);
+            joins = Arrays.copyOf(joins, length);
+        }
+        int slot = (int) ((version - firstVersion) % nicknames.length);
+        nicknames[slot] = nickname;
+        joins[slot] = join;
+        version++;
+    }
+
+    /**
+     * Gets the net changes since the given version. A user who joined and then left again only
+     * appears as a leave, and the other way around.
+     *
+     * @param sinceVersion The membership version the client last saw
+     * @return The changes since that version, or null if the log no longer reaches back that far
+     *         or the version is not one of this log's, such as a negative version or one from
+     *         an earlier incarnation of the channel
+     */
+    public MembershipDelta since(long sinceVersion) {
+        if (sinceVersion < firstVersion || sinceVersion > version
+                || version - sinceVersion > CAPACITY) {
+            return null;
+        }
+        Map<String, Boolean> lastChange = new TreeMap<>();
+        for (long v = sinceVersion; v < version; v++) {
+            int slot = (int) ((v - firstVersion) % nicknames.length);
+            lastChange.put(nicknames[slot], joins[slot]);
+        }
+        Set<String> joined = new TreeSet<>();
+        Set<String> left = new TreeSet<>();
+        for (Map.Entry<String, Boolean> change : lastChange.entrySet()) {
+            if (change.getValue()) {
+                joined.add(change.getKey());
+            } else {
+                left.add(change.getKey());
+            }
+        }
+        return MembershipDelta.changes(version, joined, left);
+    }
+}
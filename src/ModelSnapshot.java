@@ -0,0 +1,86 @@
+import java.util.*;
+
+/*
+ * An immutable, consistent picture of the users and channels of a
+ * ServerModel at one point in time. The command thread publishes a new
+ * snapshot after every command that changes the model; readers such as
+ * dashboards and bots take the latest one with ServerModel.snapshot() and
+ * can query it for as long as they like, from any thread, without blocking
+ * the writer or seeing a half-applied command.
+ *
+ * The queries mirror the read-only queries of ServerModel.
+ */
+
+public final class ModelSnapshot {
+    private final long epoch;
+    private final PersistentSortedMap<Integer, String> users;
+    private final PersistentSortedMap<String, ChannelSnapshot> channels;
+
+    public ModelSnapshot(long epoch, PersistentSortedMap<Integer, String> users,
+                         PersistentSortedMap<String, ChannelSnapshot> channels) {
+        this.epoch = epoch;
+        this.users = users;
+        this.channels = channels;
+    }
+
+    /**
+     * @return The number of model changes published before this snapshot
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return The nickname of every user, keyed by user ID
+     */
+    public PersistentSortedMap<Integer, String> getUserIndex() {
+        return users;
+    }
+
+    /**
+     * @return Every channel, keyed by name
+     */
+    public PersistentSortedMap<String, ChannelSnapshot> getChannelIndex() {
+        return channels;
+    }
+
+    public String getNickname(int userId) {
+        return users.get(userId);
+    }
+
+    public Collection<String> getRegisteredUsers() {
+        return users.values();
+    }
+
+    public Collection<String> getChannels() {
+        return channels.keys();
+    }
+
+    /**
+     * @param channelName The channel for which to get member nicknames
+     * @return The nicknames of the channel's members, empty if there is no such channel
+     */
+    public Collection<String> getUsers(String channelName) {
+        Set<String> nicknames = new TreeSet<>();
+        ChannelSnapshot channel = channels.get(channelName);
+        if (channel == null) {
+            return nicknames;
+        }
+        for (Integer userId : channel.getMembers().keys()) {
+            nicknames.add(users.get(userId));
+        }
+        return nicknames;
+    }
+
+    /**
+     * @param channelName The channel for which to get the owner nickname
+     * @return The nickname of the channel owner, or null if there is no such channel
+     */
+    public String getOwner(String channelName) {
+        ChannelSnapshot channel = channels.get(channelName);
+        if (channel == null) {
+            return null;
+        }
+        return users.get(channel.getOwner());
+    }
+}
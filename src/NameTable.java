@@ -0,0 +1,160 @@
+import java.util.*;
+
+/*
+ * The name table class is a symbol table for nicknames. Each name is stored
+ * once, as a single String instance that the model's user index and read
+ * snapshots share rather than copy, and is known everywhere else by a small
+ * int handle. A handle stays the same for as long as its name is in the
+ * table.
+ *
+ * Names are found by an open-addressing hash index over the handles, keyed
+ * by String.hashCode() (which String caches), so neither looking up a name
+ * that arrived in a command nor resolving a handle back to its name
+ * allocates. Released handles are reused.
+ */
+
+public class NameTable {
+    private String[] names;
+    private int[] hashes;
+    private int handleCount;
+    private int[] freeHandles;
+    private int freeCount;
+
+    private int[] index;
+    private int size;
+
+    public NameTable() {
+        this.names = new String[16];
+        this.hashes = new int[16];
+        this.freeHandles = new int[16];
+        this.index = new int[32];
+    }
+
+    /**
+     * @return The number of names in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the handle of a name, adding the name to the table if it is not there yet. The table
+     * keeps the given instance, which {@link #name(int)} returns from then on.
+     *
+     * @param name The name to intern
+     * @return The handle of the name
+     */
+    public int intern(String name) {
+        int handle = lookup(name);
+        if (handle >= 0) {
+            return handle;
+        }
+        if ((size + 1) * 2 > index.length) {
+            rehash(index.length * 2);
+        }
+        handle = freeCount > 0 ? freeHandles[--freeCount] : newHandle();
+        names[handle] = name;
+        hashes[handle] = name.hashCode();
+        size++;
+        insertIntoIndex(handle);
+        return handle;
+    }
+
+    /**
+     * Gets the handle of a name without adding it.
+     *
+     * @param name The name to look up
+     * @return The handle of the name, or -1 if the name is not in the table
+     */
+    public int lookup(String name) {
+        int mask = index.length - 1;
+        int hash = name.hashCode();
+        for (int slot = mix(hash) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int handle = index[slot] - 1;
+            if (hashes[handle] == hash && names[handle].equals(name)) {
+                return handle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the name behind a handle.
+     *
+     * @param handle A handle returned by {@link #intern(String)} and not yet released
+     * @return The name, the same instance every time
+     */
+    public String name(int handle) {
+        return names[handle];
+    }
+
+    /**
+     * Removes a name from the table. Its handle may be handed out again for another name.
+     *
+     * @param handle The handle of the name to remove
+     */
+    public void release(int handle) {
+        removeFromIndex(handle);
+        names[handle] = null;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = handle;
+        size--;
+    }
+
+    private int newHandle() {
+        if (handleCount == names.length) {
+            int capacity = handleCount * 2;
+            names = Arrays.copyOf(names, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        return handleCount++;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void insertIntoIndex(int handle) {
+        int mask = index.length - 1;
+        int slot = mix(hashes[handle]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = handle + 1;
+    }
+
+    /*
+     * Linear probing deletion by backward shift, so the index never needs
+     * tombstones.
+     */
+    private void removeFromIndex(int handle) {
+        int mask = index.length - 1;
+        int slot = mix(hashes[handle]) & mask;
+        while (index[slot] != handle + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        for (int next = (hole + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+            int home = mix(hashes[index[next] - 1]) & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next)
+                                           : (home <= hole && home > next);
+            if (movable) {
+                index[hole] = index[next];
+                hole = next;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        index = new int[capacity];
+        for (int handle = 0; handle < handleCount; handle++) {
+            if (names[handle] != null) {
+                insertIntoIndex(handle);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.*;
+
+/*
+ * One page of the member list of a channel. Large channels hand out their
+ * NAMES list a page at a time so that no single reply has to carry every
+ * member. The cursor is a user ID: the next page starts at nextCursor, and
+ * a nextCursor of -1 means the list is finished.
+ */
+
+public class NamesPage {
+    private final List<String> nicknames;
+    private final int nextCursor;
+
+    public NamesPage(List<String> nicknames, int nextCursor) {
+        this.nicknames = Collections.unmodifiableList(nicknames);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<String> getNicknames() {
+        return nicknames;
+    }
+
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isLast() {
+        return nextCursor == -1;
+    }
+}
@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * The off-heap arena class hands out blocks of int storage that live outside
+ * the Java heap, in direct ByteBuffer slabs of SLAB_BYTES each. The garbage
+ * collector only ever sees the handful of slab objects, never the ints in
+ * them, so tens of millions of channel memberships add nothing to GC work.
+ *
+ * Blocks come in power-of-two size classes, from MIN_INTS ints upwards. A
+ * freed block goes onto the free list of its class and is reused by the next
+ * allocation of that class. Blocks too big for a slab get a dedicated
+ * buffer, which is dropped when the block is freed.
+ *
+ * A block is named by a long: the slab index in the high 32 bits, then the
+ * byte offset within the slab, then the size class in the low 6 bits. The
+ * arena is not thread-safe and is meant to be used from the command thread.
+ */
+
+public class OffHeapArena {
+    static final int SLAB_BYTES = 1 << 20;
+    static final int MIN_INTS = 16;
+
+    private static final int CLASS_BITS = 6;
+    private static final int LARGEST_SLAB_CLASS = classFor(SLAB_BYTES / 4);
+
+    private final List<ByteBuffer> slabs;
+    private final long[][] freeLists;
+    private final int[] freeCounts;
+    private int bumpSlab;
+    private int bumpOffset;
+    private long allocatedBytes;
+
+    public OffHeapArena() {
+        this.slabs = new ArrayList<ByteBuffer>();
+        this.freeLists = new long[1 << CLASS_BITS][];
+        this.freeCounts = new int[1 << CLASS_BITS];
+        this.bumpSlab = -1;
+        this.bumpOffset = SLAB_BYTES;
+    }
+
+    /**
+     * Allocates a block of at least the given number of ints. The contents are undefined.
+     *
+     * @param ints The number of ints the block must hold
+     * @return The block
+     */
+    public long allocate(int ints) {
+        int sizeClass = classFor(ints);
+        int bytes = capacityOf(sizeClass) * 4;
+        allocatedBytes += bytes;
+        if (freeCounts[sizeClass] > 0) {
+            return freeLists[sizeClass][--freeCounts[sizeClass]];
+        }
+        if (sizeClass > LARGEST_SLAB_CLASS) {
+            slabs.add(ByteBuffer.allocateDirect(bytes));
+            return block(slabs.size() - 1, 0, sizeClass);
+        }
+        if (bumpOffset + bytes > SLAB_BYTES) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_BYTES));
+            bumpSlab = slabs.size() - 1;
+            bumpOffset = 0;
+        }
+        long block = block(bumpSlab, bumpOffset, sizeClass);
+        bumpOffset += bytes;
+        return block;
+    }
+
+    /**
+     * Returns a block to the arena. The block must not be used afterwards.
+     *
+     * @param block A block returned by {@link #allocate(int)}
+     */
+    public void free(long block) {
+        int sizeClass = classOf(block);
+        allocatedBytes -= capacityOf(sizeClass) * 4;
+        if (sizeClass > LARGEST_SLAB_CLASS) {
+            slabs.set(slabOf(block), null);
+            return;
+        }
+        long[] freeList = freeLists[sizeClass];
+        if (freeList == null || freeCounts[sizeClass] == freeList.length) {
+            freeList = freeList == null ? new long[8]
+                                        : Arrays.copyOf(freeList, freeList.length * 2);
+            freeLists[sizeClass] = freeList;
+        }
+        freeList[freeCounts[sizeClass]++] = block;
+    }
+
+    /**
+     * @return The number of ints the block can hold
+     */
+    public int capacity(long block) {
+        return capacityOf(classOf(block));
+    }
+
+    public int getInt(long block, int index) {
+        return slabs.get(slabOf(block)).getInt(offsetOf(block) + index * 4);
+    }
+
+    public void putInt(long block, int index, int value) {
+        slabs.get(slabOf(block)).putInt(offsetOf(block) + index * 4, value);
+    }
+
+    /**
+     * @return The number of bytes in blocks that are currently allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private static int classFor(int ints) {
+        int sizeClass = 0;
+        while (capacityOf(sizeClass) < ints) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static int capacityOf(int sizeClass) {
+        return MIN_INTS << sizeClass;
+    }
+
+    private static long block(int slab, int offset, int sizeClass) {
+        return ((long) slab << 32) | ((long) offset << CLASS_BITS) | sizeClass;
+    }
+
+    private static int slabOf(long block) {
+        return (int) (block >>> 32);
+    }
+
+    private static int offsetOf(long block) {
+        return (int) (block & 0xFFFFFFFFL) >>> CLASS_BITS;
+    }
+
+    private static int classOf(long block) {
+        return (int) (block & ((1 << CLASS_BITS) - 1));
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.*;
+
+/*
+ * A MemberSet that keeps its user IDs as a sorted int array in a block of an
+ * OffHeapArena, so that a channel's membership creates no heap objects at
+ * all. The block is doubled when it fills and halved when it is less than a
+ * quarter full. release() must be called when the channel is destroyed, so
+ * that the block goes back to the arena.
+ */
+
+public class OffHeapMemberSet implements MemberSet {
+    private final OffHeapArena arena;
+    private long block;
+    private int size;
+
+    public OffHeapMemberSet(OffHeapArena arena) {
+        this.arena = arena;
+        this.block = arena.allocate(OffHeapArena.MIN_INTS);
+        this.size = 0;
+    }
+
+    public boolean add(int userId) {
+        int position = search(userId);
+        if (position >= 0) {
+            return false;
+        }
+        position = -position - 1;
+        if (size == arena.capacity(block)) {
+            resize(size * 2);
+        }
+        for (int i = size; i > position; i--) {
+            arena.putInt(block, i, arena.getInt(block, i - 1));
+        }
+        arena.putInt(block, position, userId);
+        size++;
+        return true;
+    }
+
+    public boolean remove(int userId) {
+        int position = search(userId);
+        if (position < 0) {
+            return false;
+        }
+        for (int i = position + 1; i < size; i++) {
+            arena.putInt(block, i - 1, arena.getInt(block, i));
+        }
+        size--;
+        int capacity = arena.capacity(block);
+        if (capacity > OffHeapArena.MIN_INTS && size < capacity / 4) {
+            resize(capacity / 2);
+        }
+        return true;
+    }
+
+    public boolean contains(int userId) {
+        return search(userId) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PrimitiveIterator.OfInt iteratorFrom(int fromUserId) {
+        int start = search(fromUserId);
+        final int first = start >= 0 ? start : -start - 1;
+        return new PrimitiveIterator.OfInt() {
+            private int next = first;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public int nextInt() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return arena.getInt(block, next++);
+            }
+        };
+    }
+
+    @Override
+    public int copyTo(int[] into) {
+        for (int i = 0; i < size; i++) {
+            into[i] = arena.getInt(block, i);
+        }
+        return size;
+    }
+
+    @Override
+    public void release() {
+        arena.free(block);
+        size = 0;
+    }
+
+    private void resize(int ints) {
+        long resized = arena.allocate(ints);
+        for (int i = 0; i < size; i++) {
+            arena.putInt(resized, i, arena.getInt(block, i));
+        }
+        arena.free(block);
+        block = resized;
+    }
+
+    /*
+     * Binary search with the same contract as Arrays.binarySearch.
+     */
+    private int search(int userId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = arena.getInt(block, middle);
+            if (value < userId) {
+                low = middle + 1;
+            } else if (value > userId) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+}
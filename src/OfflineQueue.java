@@ -0,0 +1,126 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * The offline queue class holds the messages captured for one identity while
+ * it is disconnected. The first MEMORY_LIMIT messages are kept in memory;
+ * once that fills up, later messages are gathered into batches of
+ * SPILL_BATCH and each full batch is appended to a spill segment on disk, so
+ * message order is memory first, then disk, then the unwritten batch. The
+ * segment is only open while a batch is written or the queue is drained, so
+ * a store with many queues does not hold a file descriptor for each. At most
+ * MAX_MESSAGES are kept in total, and messages beyond that are dropped and
+ * counted.
+ *
+ * A segment left behind by an earlier process belongs to nobody, so it is
+ * deleted when the queue is created.
+ */
+
+public class OfflineQueue {
+    static final int MEMORY_LIMIT = 256;
+    static final int SPILL_BATCH = 64;
+    static final int MAX_MESSAGES = 10000;
+
+    private final ArrayDeque<String> memory;
+    private final List<String> batch;
+    private final File segment;
+    private int spilled;
+    private int dropped;
+
+    public OfflineQueue(File segment) {
+        this.memory = new ArrayDeque<String>();
+        this.batch = new ArrayList<String>(SPILL_BATCH);
+        this.segment = segment;
+        segment.delete();
+    }
+
+    public int size() {
+        return memory.size() + spilled + batch.size();
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The number of messages that did not fit in memory, whether or not their batch has
+     *         been written yet
+     */
+    public int getSpilled() {
+        return spilled + batch.size();
+    }
+
+    /**
+     * Adds a message to the end of the queue.
+     *
+     * @param frame The encoded message
+     */
+    public void add(String frame) {
+        if (size() >= MAX_MESSAGES) {
+            dropped++;
+            return;
+        }
+        if (memory.size() < MEMORY_LIMIT && getSpilled() == 0) {
+            memory.add(frame);
+            return;
+        }
+        batch.add(frame);
+        if (batch.size() == SPILL_BATCH) {
+            writeBatch();
+        }
+    }
+
+    /*
+     * Appends the batch to the segment and closes it again. If the write fails the segment may
+     * end in a partial frame, so everything on disk is dropped along with the batch.
+     */
+    private void writeBatch() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(segment, true)))) {
+            for (String frame : batch) {
+                out.writeUTF(frame);
+            }
+            spilled += batch.size();
+        } catch (IOException e) {
+            dropped += spilled + batch.size();
+            spilled = 0;
+            segment.delete();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Removes and returns every message in the queue, oldest first, and deletes the spill
+     * segment.
+     *
+     * @return The queued messages
+     */
+    public List<String> drain() {
+        List<String> frames = new ArrayList<String>(size());
+        frames.addAll(memory);
+        memory.clear();
+        if (spilled > 0) {
+            int fromMemory = frames.size();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segment)))) {
+                for (int i = 0; i < spilled; i++) {
+                    frames.add(in.readUTF());
+                }
+            } catch (IOException e) {
+                dropped += spilled - (frames.size() - fromMemory);
+            }
+        }
+        frames.addAll(batch);
+        discard();
+        return frames;
+    }
+
+    /**
+     * Throws away the queue's spilled messages and its spill segment, if it has one.
+     */
+    public void discard() {
+        batch.clear();
+        spilled = 0;
+        segment.delete();
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * The offline store class captures channel messages for users who have
+ * disconnected, so that they can be handed over in one batch when the user
+ * comes back. An identity is a nickname the user chose for themselves (a
+ * generated "UserX" nickname is not an identity); while it is away, every
+ * message sent into a channel it was in is added to its OfflineQueue, and
+ * the queue is drained when a user takes that nickname again.
+ *
+ * A nickname is not proof of who someone is, so messages of invite-only
+ * channels and direct messages are never captured: whoever takes the
+ * nickname next would read them. At most MAX_IDENTITIES identities are captured for at once; when
+ * another one goes away, the one that has been away longest is forgotten
+ * along with its messages.
+ *
+ * Spill segments are written to the directory given at construction. The
+ * store is used from the command thread only.
+ */
+
+public class OfflineStore {
+    static final int MAX_IDENTITIES = 1000;
+
+    private final File spillDirectory;
+    private final Map<String, OfflineQueue> queues;
+    private final Map<String, Set<String>> awayByChannel;
+
+    public OfflineStore(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        this.queues = new LinkedHashMap<String, OfflineQueue>();
+        this.awayByChannel = new TreeMap<String, Set<String>>();
+        spillDirectory.mkdirs();
+    }
+
+    /**
+     * Starts capturing messages for an identity that has just disconnected. An identity that was
+     * in no public channel has nothing to capture, so it gets no queue.
+     *
+     * @param identity The nickname the user had chosen
+     * @param channelNames The public channels the user was in
+     */
+    public void away(String identity, Collection<String> channelNames) {
+        if (channelNames.isEmpty()) {
+            return;
+        }
+        queueFor(identity);
+        for (String channelName : channelNames) {
+            Set<String> away = awayByChannel.get(channelName);
+            if (away == null) {
+                away = new TreeSet<String>();
+                awayByChannel.put(channelName, away);
+            }
+            away.add(identity);
+        }
+    }
+
+    /*
+     * Returns the identity's queue, creating it if needed, and forgetting the identity that has
+     * been away longest if the store is full.
+     */
+    private OfflineQueue queueFor(String identity) {
+        OfflineQueue queue = queues.get(identity);
+        if (queue == null) {
+            if (queues.size() >= MAX_IDENTITIES) {
+                String longestAway = queues.keySet().iterator().next();
+                forget(longestAway).discard();
+            }
+            queue = new OfflineQueue(new File(spillDirectory, identity + ".spill"));
+            queues.put(identity, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * @return true if some disconnected identity is waiting for messages from the channel
+     */
+    public boolean isWatched(String channelName) {
+        return awayByChannel.containsKey(channelName);
+    }
+
+    /**
+     * Queues a message for every disconnected identity that was in the channel.
+     *
+     * @param channelName The channel the message was sent to
+     * @param frame The encoded message
+     */
+    public void capture(String channelName, String frame) {
+        Set<String> away = awayByChannel.get(channelName);
+        if (away == null) {
+            return;
+        }
+        for (String identity : away) {
+            queues.get(identity).add(frame);
+        }
+    }
+
+    /**
+     * Stops capturing for a channel that no longer exists.
+     */
+    public void channelRemoved(String channelName) {
+        awayByChannel.remove(channelName);
+    }
+
+    /**
+     * Stops capturing for an identity that is back, and hands over everything captured for it.
+     *
+     * @param identity The nickname the returning user has taken
+     * @return The captured messages, oldest first; empty if nothing was captured
+     */
+    public List<String> reclaim(String identity) {
+        OfflineQueue queue = forget(identity);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        return queue.drain();
+    }
+
+    /*
+     * Stops capturing for an identity, and returns its queue, or null if it had none.
+     */
+    private OfflineQueue forget(String identity) {
+        OfflineQueue queue = queues.remove(identity);
+        if (queue == null) {
+            return null;
+        }
+        Iterator<Set<String>> channels = awayByChannel.values().iterator();
+        while (channels.hasNext()) {
+            Set<String> away = channels.next();
+            away.remove(identity);
+            if (away.isEmpty()) {
+                channels.remove();
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Moves every pending queue into one file and empties the store. Only the queues are kept:
+     * the channels an identity was in are forgotten, so this is meant for a store whose channels
+     * are all gone, such as that of a {@link Tenant} being evicted.
+     *
+     * @param file The file to write
+     * @throws IOException If the file cannot be written
+     */
+    public void saveTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            out.writeInt(queues.size());
+            for (Map.Entry<String, OfflineQueue> entry : queues.entrySet()) {
+                List<String> frames = entry.getValue().drain();
+                out.writeUTF(entry.getKey());
+                out.writeInt(frames.size());
+                for (String frame : frames) {
+                    out.writeUTF(frame);
+                }
+            }
+        }
+        queues.clear();
+        awayByChannel.clear();
+    }
+
+    /**
+     * Reads back the queues written by {@link #saveTo(File)}, and deletes the file.
+     *
+     * @param file The file to read; nothing happens if it does not exist
+     * @throws IOException If the file cannot be read
+     */
+    public void restoreFrom(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            int identities = in.readInt();
+            for (int i = 0; i < identities; i++) {
+                String identity = in.readUTF();
+                OfflineQueue queue = queueFor(identity);
+                int frames = in.readInt();
+                for (int j = 0; j < frames; j++) {
+                    queue.add(in.readUTF());
+                }
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return The number of messages waiting for the identity
+     */
+    public int pending(String identity) {
+        OfflineQueue queue = queues.get(identity);
+        return queue == null ? 0 : queue.size();
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * An immutable sorted map. put and remove leave the map they are called on
+ * untouched and return a new map that shares all but O(log n) of its nodes
+ * with the old one, so keeping an old version around costs almost nothing.
+ * This is what lets ServerModel hand readers a consistent snapshot while the
+ * command thread keeps writing.
+ *
+ * The map is a treap: nodes are ordered by key and heap-ordered by a
+ * random priority drawn when the key is first inserted, which keeps it
+ * balanced without storing any rebalancing state. The priorities must not
+ * depend on the keys: channel names are chosen by clients, and keys that
+ * share a priority never rotate, so a client could otherwise pick names
+ * that turn the tree into a list. With random priorities the depth, and so
+ * the recursion of put and remove, stays logarithmic whatever the keys.
+ */
+
+public final class PersistentSortedMap<K extends Comparable<K>, V> {
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int priority;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int size;
+
+        Node(K key, V value, int priority, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+        }
+
+        Node<K, V> with(Node<K, V> newLeft, Node<K, V> newRight) {
+            return new Node<K, V>(key, value, priority, newLeft, newRight);
+        }
+    }
+
+    private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null);
+
+    private final Node<K, V> root;
+
+    private PersistentSortedMap(Node<K, V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<K>, V> PersistentSortedMap<K, V> empty() {
+        return (PersistentSortedMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return sizeOf(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp == 0) {
+                return node.value;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return A map with the same entries as this one, except that {@code key} maps to
+     *         {@code value}
+     */
+    public PersistentSortedMap<K, V> put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("persistent map values may not be null");
+        }
+        return new PersistentSortedMap<K, V>(insert(root, key, value, 
+                                                    ThreadLocalRandom.current().nextInt()));
+    }
+
+    /**
+     * @return A map with the same entries as this one, except that {@code key} is absent
+     */
+    public PersistentSortedMap<K, V> remove(K key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        return new PersistentSortedMap<K, V>(delete(root, key));
+    }
+
+    /**
+     * @return The keys of the map in ascending order
+     */
+    public List<K> keys() {
+        List<K> keys = new ArrayList<K>(size());
+        collect(root, keys, null);
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return The values of the map in ascending order of their keys
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(size());
+        collect(root, null, values);
+        return Collections.unmodifiableList(values);
+    }
+
+    private static int sizeOf(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> insert(Node<K, V> node, K key,
+                                                                   V value, int priority) {
+        if (node == null) {
+            return new Node<K, V>(key, value, priority, null, null);
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp == 0) {
+            return new Node<K, V>(key, value, node.priority, node.left, node.right);
+        }
+        if (cmp < 0) {
+            Node<K, V> left = insert(node.left, key, value, priority);
+            if (left.priority > node.priority) {
+                return left.with(left.left, node.with(left.right, node.right));
+            }
+            return node.with(left, node.right);
+        }
+        Node<K, V> right = insert(node.right, key, value, priority);
+        if (right.priority > node.priority) {
+            return right.with(node.with(node.left, right.left), right.right);
+        }
+        return node.with(node.left, right);
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> delete(Node<K, V> node, K key) {
+        int cmp = key.compareTo(node.key);
+        if (cmp < 0) {
+            return node.with(delete(node.left, key), node.right);
+        }
+        if (cmp > 0) {
+            return node.with(node.left, delete(node.right, key));
+        }
+        return merge(node.left, node.right);
+    }
+
+    private static <K, V> Node<K, V> merge(Node<K, V> left, Node<K, V> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            return left.with(left.left, merge(left.right, right));
+        }
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    private static <K, V> void collect(Node<K, V> node, List<K> keys, List<V> values) {
+        while (node != null) {
+            collect(node.left, keys, values);
+            if (keys != null) {
+                keys.add(node.key);
+            }
+            if (values != null) {
+                values.add(node.value);
+            }
+            node = node.right;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The read replica class keeps a read-only copy of a primary ServerModel,
+ * fed by a ReplicationServer, so that channel lists, member lists and owner
+ * lookups can be answered without touching the primary. It starts from the
+ * snapshot the primary sends on connect and applies each change batch to it
+ * in order, publishing a new ModelSnapshot per batch, exactly as the primary
+ * does.
+ *
+ * Staleness is bounded: the primary sends something at least every
+ * ReplicationServer.HEARTBEAT_MILLIS, and the replica refuses to answer
+ * once it has heard nothing for longer than its maximum staleness, rather
+ * than serve data of unknown age. A replica can also run as a process of
+ * its own:
+ *
+ *     java ReadReplica host port
+ */
+
+public class ReadReplica implements Closeable {
+    private final Socket socket;
+    private final long maxStalenessNanos;
+    private final Object epochMonitor;
+    private volatile ModelSnapshot snapshot;
+    private volatile long lastHeard;
+    private volatile IOException failure;
+
+    /**
+     * Connects to a primary and starts following it.
+     *
+     * @param host The host of the {@link ReplicationServer}
+     * @param port The port of the {@link ReplicationServer}
+     * @param maxStalenessNanos How long the replica may go without hearing from the primary
+     *                          before it stops answering queries
+     */
+    public ReadReplica(String host, int port, long maxStalenessNanos) throws IOException {
+        this.socket = new Socket(host, port);
+        this.maxStalenessNanos = maxStalenessNanos;
+        this.epochMonitor = new Object();
+        Thread reader = new Thread(this::follow, "replica-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java ReadReplica host port");
+            System.exit(2);
+        }
+        try (ReadReplica replica = new ReadReplica(args[0], Integer.parseInt(args[1]),
+                                                   TimeUnit.SECONDS.toNanos(1))) {
+            while (replica.getFailure() == null) {
+                Thread.sleep(1000);
+                ModelSnapshot current = replica.snapshot;
+                System.out.printf("epoch=%d users=%d channels=%d staleness=%d ms%n",
+                                  current == null ? -1 : current.getEpoch(),
+                                  current == null ? 0 : current.getRegisteredUsers().size(),
+                                  current == null ? 0 : current.getChannels().size(),
+                                  TimeUnit.NANOSECONDS.toMillis(replica.getStalenessNanos()));
+            }
+            throw replica.getFailure();
+        }
+    }
+
+    /**
+     * Gets the replica's latest copy of the model.
+     *
+     * @return The latest snapshot
+     * @throws IllegalStateException if the replica has no snapshot yet, or has not heard from
+     *                               the primary within its maximum staleness
+     */
+    public ModelSnapshot read() {
+        ModelSnapshot current = snapshot;
+        if (current == null || getStalenessNanos() > maxStalenessNanos) {
+            throw new IllegalStateException("replica is stale", failure);
+        }
+        return current;
+    }
+
+    public Collection<String> getRegisteredUsers() {
+        return read().getRegisteredUsers();
+    }
+
+    public Collection<String> getChannels() {
+        return read().getChannels();
+    }
+
+    public Collection<String> getUsers(String channelName) {
+        return read().getUsers(channelName);
+    }
+
+    public String getOwner(String channelName) {
+        return read().getOwner(channelName);
+    }
+
+    /**
+     * @return The time since the replica last heard from the primary
+     */
+    public long getStalenessNanos() {
+        return System.nanoTime() - lastHeard;
+    }
+
+    /**
+     * @return The error that disconnected the replica, or null if it is still following
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits until the replica has caught up with the given epoch of the primary, for reads that
+     * must see a write the caller just made.
+     *
+     * @param epoch The epoch of {@link ServerModel#snapshot()} to wait for
+     * @return true if the replica reached the epoch in time
+     */
+    public boolean awaitEpoch(long epoch, long timeout, TimeUnit unit) 
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (epochMonitor) {
+            while (snapshot == null || snapshot.getEpoch() < epoch) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || failure != null) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(epochMonitor, remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void follow() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream(), 1 << 16))) {
+            int type;
+            while ((type = in.read()) >= 0) {
+                lastHeard = System.nanoTime();
+                switch (type) {
+                    case ReplicationServer.SNAPSHOT:
+                        publish(readSnapshot(in));
+                        break;
+                    case ReplicationServer.BATCH:
+                        long epoch = in.readLong();
+                        byte[] changes = new byte[in.readInt()];
+                        in.readFully(changes);
+                        if (snapshot == null) {
+                            throw new IOException("corrupt replication stream: batch " + epoch
+                                                  + " before any snapshot");
+                        }
+                        if (epoch > snapshot.getEpoch()) {
+                            publish(ChangeStream.apply(snapshot, epoch, changes));
+                        }
+                        break;
+                    case ReplicationServer.HEARTBEAT:
+                        break;
+                    default:
+                        throw new IOException("corrupt replication frame: type " + type);
+                }
+            }
+            throw new EOFException("primary closed the replication stream");
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("corrupt replication stream", e));
+        }
+    }
+
+    /*
+     * Records why the replica stopped following, and wakes anyone waiting for an epoch.
+     */
+    private void fail(IOException e) {
+        failure = e;
+        synchronized (epochMonitor) {
+            epochMonitor.notifyAll();
+        }
+    }
+
+    private void publish(ModelSnapshot next) {
+        synchronized (epochMonitor) {
+            snapshot = next;
+            epochMonitor.notifyAll();
+        }
+    }
+
+    private static ModelSnapshot readSnapshot(DataInputStream in) throws IOException {
+        long epoch = in.readLong();
+        PersistentSortedMap<Integer, String> users = PersistentSortedMap.empty();
+        for (int i = in.readInt(); i > 0; i--) {
+            users = users.put(in.readInt(), in.readUTF());
+        }
+        PersistentSortedMap<String, ChannelSnapshot> channels = PersistentSortedMap.empty();
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            ChannelSnapshot channel = new ChannelSnapshot(name, in.readInt(), in.readBoolean());
+            for (int m = in.readInt(); m > 0; m--) {
+                channel = channel.withMember(in.readInt());
+            }
+            channels = channels.put(name, channel);
+        }
+        return new ModelSnapshot(epoch, users, channels);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The replay report class holds the result of one TrafficReplay run: how
+ * much traffic was replayed, how fast, the latency of individual commands,
+ * and whether the model ended up in the state the capture recorded.
+ */
+
+public class ReplayReport {
+    private final long events;
+    private final long commands;
+    private final long elapsedNanos;
+    private final long[] sortedLatencies;
+    private final long fingerprint;
+    private final Long expectedFingerprint;
+
+    ReplayReport(long events, long commands, long elapsedNanos, long[] sortedLatencies,
+                 long fingerprint, Long expectedFingerprint) {
+        this.events = events;
+        this.commands = commands;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencies = sortedLatencies;
+        this.fingerprint = fingerprint;
+        this.expectedFingerprint = expectedFingerprint;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return The number of commands replayed per second of wall-clock time
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : commands * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100
+     * @return The command latency at that percentile, in nanoseconds
+     */
+    public long getLatency(double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return true if the capture recorded a final state and the replay arrived at the same one
+     */
+    public boolean stateMatches() {
+        return expectedFingerprint != null && expectedFingerprint == fingerprint;
+    }
+
+    /**
+     * @return true if the capture ended with a fingerprint to check against
+     */
+    public boolean hasExpectedState() {
+        return expectedFingerprint != null;
+    }
+
+    @Override
+    public String toString() {
+        String state = !hasExpectedState() ? "unchecked" : stateMatches() ? "matches" : "DIFFERS";
+        return String.format("%d events, %d commands in %.1f ms (%.0f commands/s); "
+                + "latency p50 %d ns, p99 %d ns, max %d ns; state %016x %s",
+                events, commands, elapsedNanos / 1e6, getThroughput(),
+                getLatency(50), getLatency(99), getLatency(100), fingerprint, state);
+    }
+}
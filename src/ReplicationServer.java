@@ -0,0 +1,216 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * The replication server class feeds read replicas (see ReadReplica) from a
+ * primary ServerModel. It listens on a socket; each replica that connects
+ * is first sent a full snapshot of the model and then every change batch
+ * published after it, in order, plus a heartbeat every HEARTBEAT_MILLIS so
+ * the replica can tell how stale it might be even when nothing changes.
+ *
+ * The command thread only encodes each batch once and queues it for every
+ * replica; a writer thread per replica does the socket I/O. A replica that
+ * falls more than MAX_QUEUED_FRAMES behind is disconnected, and catches up
+ * again from a fresh snapshot when it reconnects.
+ *
+ * Frames on the wire are a type byte followed by: for SNAPSHOT the epoch,
+ * the users and the channels with their members; for BATCH the epoch and
+ * the encoded ChangeStream batch; for HEARTBEAT nothing.
+ */
+
+public class ReplicationServer implements ChangeStream.Sink, Closeable {
+    static final int SNAPSHOT = 1;
+    static final int BATCH = 2;
+    static final int HEARTBEAT = 3;
+
+    static final long HEARTBEAT_MILLIS = 100;
+    static final int MAX_QUEUED_FRAMES = 65536;
+
+    private static final byte[] HEARTBEAT_FRAME = {HEARTBEAT};
+
+    private final ServerModel model;
+    private final ServerSocket serverSocket;
+    private final List<Session> sessions;
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * Starts serving replicas of the model. The model starts publishing its changes right away.
+     * Must be called on the command thread.
+     *
+     * @param model The primary model
+     * @param address The address to listen on, such as the loopback address
+     * @param port The port to listen on, or 0 for any free port
+     */
+    public ReplicationServer(ServerModel model, InetAddress address, int port) 
+            throws IOException {
+        this.model = model;
+        this.serverSocket = new ServerSocket(port, 50, address);
+        this.sessions = new CopyOnWriteArrayList<Session>();
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replication-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        model.setChangeStream(new ChangeStream(this));
+        Thread acceptor = new Thread(this::acceptReplicas, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        heartbeats.scheduleAtFixedRate(() -> {
+            for (Session session : sessions) {
+                session.enqueue(HEARTBEAT_FRAME);
+            }
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The port replicas connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The number of replicas currently connected
+     */
+    public int getReplicaCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public void batch(long epoch, byte[] changes) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(changes.length + 13);
+        DataOutputStream out = new DataOutputStream(frame);
+        try {
+            out.writeByte(BATCH);
+            out.writeLong(epoch);
+            out.writeInt(changes.length);
+            out.write(changes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] encoded = frame.toByteArray();
+        for (Session session : sessions) {
+            session.enqueue(encoded);
+        }
+    }
+
+    /**
+     * Stops serving replicas and disconnects the ones that are connected. The model stops
+     * publishing changes. Must be called on the command thread.
+     */
+    @Override
+    public void close() throws IOException {
+        model.setChangeStream(null);
+        heartbeats.shutdownNow();
+        serverSocket.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void acceptReplicas() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                // Registered before the snapshot is taken, so that no batch falls in between;
+                // batches the snapshot already contains are skipped by the replica.
+                sessions.add(session);
+                session.start(model.snapshot());
+            } catch (IOException e) {
+                // the socket was closed, or the replica went away while connecting
+            }
+        }
+    }
+
+    static void writeSnapshot(DataOutputStream out, ModelSnapshot snapshot) throws IOException {
+        out.writeByte(SNAPSHOT);
+        out.writeLong(snapshot.getEpoch());
+        PersistentSortedMap<Integer, String> users = snapshot.getUserIndex();
+        List<Integer> userIds = users.keys();
+        out.writeInt(userIds.size());
+        for (Integer userId : userIds) {
+            out.writeInt(userId);
+            out.writeUTF(users.get(userId));
+        }
+        List<ChannelSnapshot> channels = snapshot.getChannelIndex().values();
+        out.writeInt(channels.size());
+        for (ChannelSnapshot channel : channels) {
+            out.writeUTF(channel.getName());
+            out.writeInt(channel.getOwner());
+            out.writeBoolean(channel.isInviteOnly());
+            List<Integer> members = channel.getMembers().keys();
+            out.writeInt(members.size());
+            for (Integer member : members) {
+                out.writeInt(member);
+            }
+        }
+    }
+
+    /*
+     * One connected replica: its socket, the frames queued for it, and the
+     * thread that writes them.
+     */
+    private class Session {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> frames;
+
+        Session(Socket socket) {
+            this.socket = socket;
+            this.frames = new LinkedBlockingQueue<byte[]>();
+        }
+
+        void start(ModelSnapshot snapshot) {
+            Thread writer = new Thread(() -> write(snapshot), 
+                                       "replication-" + socket.getRemoteSocketAddress());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void enqueue(byte[] frame) {
+            if (frames.size() >= MAX_QUEUED_FRAMES) {
+                close();
+                return;
+            }
+            frames.add(frame);
+        }
+
+        void close() {
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        private void write(ModelSnapshot snapshot) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), 1 << 16))) {
+                writeSnapshot(out, snapshot);
+                out.flush();
+                while (!socket.isClosed()) {
+                    byte[] frame = frames.poll(1, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    out.write(frame);
+                    for (byte[] next; (next = frames.poll()) != null;) {
+                        out.write(next);
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // the replica went away; it resynchronizes from a snapshot when it reconnects
+            } finally {
+                close();
+            }
+        }
+    }
+}
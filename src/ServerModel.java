@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.function.LongSupplier;
 
 
 /**
@@ -10,45 +11,146 @@ import java.util.*;
  */
 public final class ServerModel implements ServerModelApi {
     
-    private Map<Integer, String> users;
-    private Set<Channel> channels;
+    /*
+     * Error codes this model needs beyond the ones the course framework's ServerError enum
+     * ships with; the framework is not part of this tree, and these constants must be added to
+     * its enum alongside the existing codes:
+     *
+     *     RATE_LIMITED    The command was not run, but may succeed if retried later: the
+     *                     sender or channel is throttled (TokenBucket), or the server is
+     *                     shedding load (AdmissionControl).
+     *     QUOTA_EXCEEDED  The command would take a tenant past one of its fixed quotas
+     *                     (TenantHost); retrying does not help until something is removed.
+     */
+    
+    /*
+     * Limits for the token buckets that throttle spam: each user may send a burst of
+     * USER_MESSAGE_BURST messages and USER_CREATE_BURST channel creations, and each channel
+     * accepts a burst of CHANNEL_MESSAGE_BURST messages from all of its members together.
+     */
+    static final int USER_MESSAGE_BURST = 20;
+    static final double USER_MESSAGES_PER_SECOND = 5;
+    static final int USER_CREATE_BURST = 5;
+    static final double USER_CREATES_PER_SECOND = 0.2;
+    static final int CHANNEL_MESSAGE_BURST = 200;
+    static final double CHANNEL_MESSAGES_PER_SECOND = 50;
+    
+    /*
+     * A channel is hot while it makes the server deliver more than HOT_FRAMES_PER_SECOND frames
+     * (messages per second times members), and cools down again below COOL_FRAMES_PER_SECOND.
+     * Hot channels are re-checked every SWEEP_INTERVAL messages.
+     */
+    static final double HOT_FRAMES_PER_SECOND = 10_000;
+    static final double COOL_FRAMES_PER_SECOND = 2_500;
+    static final int SWEEP_INTERVAL = 1024;
+
+    private UserTable users;
+    private NameTable nicknames;
+    private int[] userIdsByNickname;
+    private TreeMap<String, Channel> channels;
+    private OffHeapArena membershipArena;
+    private long channelsCreated;
+    private OfflineStore offlineStore;
+    
+    /*
+     * The clock the model throttles by. Replays swap it for the recorded times; while a command
+     * runs through execute, the time it was recorded at is pinned so that the capture and the
+     * throttling decision see the same instant.
+     */
+    private LongSupplier clock;
+    private long commandTime;
+    private boolean commandTimePinned;
+    private TrafficRecorder recorder;
+    
+    private Set<Channel> hotChannels;
+    private BitSet recipientMarks;
+    
+    /*
+     * Idle detection (off unless enabled): every user has one deadline in idleWheel, first for a
+     * keepalive ping and then, once pinged, for the idle timeout.
+     */
+    private TimingWheel idleWheel;
+    private long keepaliveNanos;
+    private long idleTimeoutNanos;
+    private int messagesSinceSweep;
+    private long hotPromotions;
+    private long hotDemotions;
+    private int channelQuota;
+    
+    /*
+     * The persistent copies of users and channels that back the read snapshots. They are only
+     * changed by the command thread, alongside the live collections above, and a new snapshot of
+     * them is published at the end of every command that changes the model. The nicknames in
+     * userIndex are the NameTable's own instances, so a name is never held twice.
+     */
+    private PersistentSortedMap<Integer, String> userIndex;
+    private PersistentSortedMap<String, ChannelSnapshot> channelIndex;
+    private long epoch;
+    private volatile ModelSnapshot snapshot;
+    private ChangeStream changeStream;
+    private ExtensionHub extensionHub;
+    private AdmissionControl admission;
+    private List<ExtensionEvent> pendingEvents;
 
     /**
      * Constructs a {@code ServerModel} and initializes any collections needed for modeling the
      * server state.
      */
-    public ServerModel() {  
-        /* List of Users: within a server/channel/etc will be instantiated using a TreeMap
-         * because it will allow rapid retrieval of userID when given a nickname and vice versa
-         * as compared to either TreeSet or LinkedList where one has to walk through the "list".
+    public ServerModel() {
+        this(false);
+    }
+
+    /**
+     * Constructs a {@code ServerModel}, optionally keeping channel membership off-heap. Off-heap
+     * membership takes the member IDs of every channel out of the garbage collector's sight,
+     * which shortens GC pauses on servers with tens of millions of memberships.
+     *
+     * @param offHeapMembership true to store channel members in an {@link OffHeapArena}
+     */
+    public ServerModel(boolean offHeapMembership) {
+        /* List of Users: a UserTable, an array of User records indexed directly by user ID,
+         * since the backend hands out small dense IDs. Each User holds the handle of its
+         * nickname, which is stored once in the NameTable, and the channels it is in;
+         * userIdsByNickname maps a nickname handle back to its user ID.
          * 
-         * List of Channels: instantiated using a TreeMap to allow rapid addition to channels
+         * List of Channels: instantiated using a TreeMap keyed by channel name, which allows
+         * rapid lookup by name and doubles as the sorted index that LIST pages through.
          */ 
-        this.users = new TreeMap<Integer, String>();
-        this.channels = new TreeSet<Channel>();
+        this.users = new UserTable();
+        this.nicknames = new NameTable();
+        this.userIdsByNickname = new int[16];
+        this.channels = new TreeMap<String, Channel>();
+        this.membershipArena = offHeapMembership ? new OffHeapArena() : null;
+        this.channelsCreated = 0;
+        this.clock = System::nanoTime;
+        this.hotChannels = new HashSet<Channel>();
+        this.recipientMarks = new BitSet();
+        this.pendingEvents = new ArrayList<ExtensionEvent>();
+        this.userIndex = PersistentSortedMap.empty();
+        this.channelIndex = PersistentSortedMap.empty();
+        this.epoch = 0;
+        this.snapshot = new ModelSnapshot(epoch, userIndex, channelIndex);
     }
     
     //Helper function returning a Set<String> of all users in the channel a current user is in
     
     public Set<String> channelsWithUser (Integer userId) {
         Set<String> usersChannels = new TreeSet<>();
-        for (Channel thisChannel : channels) {
-            if (thisChannel.getUsers().contains(userId)) {
-                for (Integer thisUserId : thisChannel.getUsers()) {
-                    usersChannels.add(users.get(thisUserId));
-                }
-            }
+        User user = users.get(userId);
+        if (user == null) {
+            return usersChannels;
+        }
+        for (Channel thisChannel : user.getChannels()) {
+            usersChannels.addAll(getUsers(thisChannel.getName()));
         }
         return usersChannels;
     }
     
     public Channel getChannelFromName (String channelName) {
-        for (Channel thisChannel : channels) {
-            if (thisChannel.getName().equals(channelName)) {
-                return thisChannel;
-            }
+        if (channelName == null) {
+            return null;
         }
-        return null;
+        return channels.get(channelName);
     }
 
 
@@ -68,11 +170,51 @@ public final class ServerModel implements ServerModelApi {
      * @return A {@link Broadcast} to the user with their new nickname
      */
     public Broadcast registerUser(int userId) {
+        return registerUser(userId, false);
+    }
+
+    /**
+     * Registers a user whose connection may have negotiated DEFLATE compression. A compressing
+     * connection gets its own {@link FrameCompressor}, which the backend output stage looks up
+     * with {@link #getCompressor(int)} and uses for every frame sent to the user.
+     *
+     * @param userId The unique ID created by the backend to represent this user
+     * @param compression true if the client asked for a compressed stream when it connected
+     * @return A {@link Broadcast} to the user with their new nickname
+     */
+    public Broadcast registerUser(int userId, boolean compression) {
+        if (recorder != null) {
+            recorder.registered(now(), userId);
+        }
         String nickname = generateUniqueNickname();
-        users.put(userId, nickname);
+        User user = new User(bindNickname(userId, nickname));
+        if (compression) {
+            user.setCompressor(new FrameCompressor());
+        }
+        users.put(userId, user);
+        touch(userId);
+        userIndex = userIndex.put(userId, nickname);
+        if (changeStream != null) {
+            changeStream.userPut(userId, nickname);
+        }
+        emit(ExtensionEvent.Kind.CONNECTED, userId, null, null, null);
+        publish();
         return Broadcast.connected(nickname);
     }
 
+    /*
+     * Interns a nickname and points its handle back at the user who holds it.
+     */
+    private int bindNickname(int userId, String nickname) {
+        int handle = nicknames.intern(nickname);
+        if (handle >= userIdsByNickname.length) {
+            userIdsByNickname = Arrays.copyOf(userIdsByNickname, 
+                                              Math.max(handle + 1, userIdsByNickname.length * 2));
+        }
+        userIdsByNickname[handle] = userId;
+        return handle;
+    }
+
     /**
      * Generates a unique nickname of the form "UserX", where X is the
      * smallest non-negative integer that yields a unique nickname for a user.
@@ -81,10 +223,9 @@ public final class ServerModel implements ServerModelApi {
     private String generateUniqueNickname() {
         int suffix = 0;
         String nickname;
-        Collection<String> existingUsers = getRegisteredUsers();
         do {
             nickname = "User" + suffix++;
-        } while (existingUsers != null && existingUsers.contains(nickname));
+        } while (nicknames.lookup(nickname) >= 0);
         return nickname;
     }
 
@@ -119,38 +260,519 @@ public final class ServerModel implements ServerModelApi {
      * @return A {@link Broadcast} instructing clients to remove the user from all channels
      */
     public Broadcast deregisterUser(int userId) {
-        TreeSet<String> usersChannels = new TreeSet<String>();
-        Iterator<Channel> allChannelsIterator = channels.iterator();
-        while(allChannelsIterator.hasNext()) {
-            Channel currentChannel = allChannelsIterator.next();
-            if (currentChannel.getUsers().contains(userId)) {
-                usersChannels.add(currentChannel.getName());
-                currentChannel.removeUser(userId);
+        Broadcast disconnected = removeUser(userId);
+        publish();
+        return disconnected;
+    }
+
+    /*
+     * Removes a user and everything it owns without publishing, so that a batch of users can be
+     * removed under a single snapshot.
+     */
+    private Broadcast removeUser(int userId) {
+        if (recorder != null) {
+            recorder.deregistered(now(), userId);
+        }
+        if (idleWheel != null) {
+            idleWheel.cancel(userId);
+        }
+        Set<String> recipients = channelsWithUser(userId);
+        recipients.remove(getNickname(userId));
+        String nickname = getNickname(userId);
+        List<String> keptChannels = new ArrayList<String>();
+        for (Channel currentChannel : new ArrayList<Channel>(users.get(userId).getChannels())) {
+            if (currentChannel.getOwner() == userId) {
+                removeChannel(currentChannel);
+            } else {
+                removeMember(currentChannel, userId);
+                if (!currentChannel.isPrivate()) {
+                    keptChannels.add(currentChannel.getName());
+                }
             }
         }
-        return Broadcast.disconnected(users.get(userId), usersChannels);
+        if (offlineStore != null && users.get(userId).isIdentified()) {
+            offlineStore.away(nickname, keptChannels);
+        }
+        emit(ExtensionEvent.Kind.DISCONNECTED, userId, null, null, null);
+        User departed = users.remove(userId);
+        nicknames.release(departed.getNickname());
+        if (departed.getCompressor() != null) {
+            departed.getCompressor().close();
+        }
+        userIndex = userIndex.remove(userId);
+        if (changeStream != null) {
+            changeStream.userRemoved(userId);
+        }
+        return Broadcast.disconnected(nickname, recipients);
     }
 
     
 
+    /*
+     * Every change to channel membership goes through addMember and removeMember, so that the
+     * channel's membership log, its cached NAMES view and the snapshot index stay in step. Channels likewise come and
+     * go only through addChannel and removeChannel.
+     */
+    private void addMember(Channel channel, int userId) {
+        if (channel.addUser(userId)) {
+            users.get(userId).joined(channel);
+            channel.invalidateNames();
+            channel.getMembershipLog().recordJoin(getNickname(userId));
+            String name = channel.getName();
+            channelIndex = channelIndex.put(name, channelIndex.get(name).withMember(userId));
+            if (changeStream != null) {
+                changeStream.memberAdded(name, userId);
+            }
+            emit(ExtensionEvent.Kind.JOINED, userId, name, null, null);
+        }
+    }
+    
+    private void removeMember(Channel channel, int userId) {
+        if (channel.removeUser(userId)) {
+            users.get(userId).left(channel);
+            channel.invalidateNames();
+            channel.getMembershipLog().recordLeave(getNickname(userId));
+            String name = channel.getName();
+            channelIndex = channelIndex.put(name, channelIndex.get(name).withoutMember(userId));
+            if (changeStream != null) {
+                changeStream.memberRemoved(name, userId);
+            }
+            emit(ExtensionEvent.Kind.LEFT, userId, name, null, null);
+        }
+    }
+    
+    private void addChannel(Channel channel) {
+        channels.put(channel.getName(), channel);
+        users.get(channel.getOwner()).joined(channel);
+        channelIndex = channelIndex.put(channel.getName(), 
+                new ChannelSnapshot(channel.getName(), channel.getOwner(), channel.isPrivate()));
+        if (changeStream != null) {
+            changeStream.channelAdded(channel.getName(), channel.getOwner(), channel.isPrivate());
+        }
+        emit(ExtensionEvent.Kind.CHANNEL_CREATED, channel.getOwner(), channel.getName(), null, null);
+    }
+    
+    private void removeChannel(Channel channel) {
+        channels.remove(channel.getName());
+        PrimitiveIterator.OfInt members = channel.usersFrom(0);
+        while (members.hasNext()) {
+            users.get(members.nextInt()).left(channel);
+        }
+        channel.destroy();
+        hotChannels.remove(channel);
+        channelIndex = channelIndex.remove(channel.getName());
+        if (changeStream != null) {
+            changeStream.channelRemoved(channel.getName());
+        }
+        if (offlineStore != null) {
+            offlineStore.channelRemoved(channel.getName());
+        }
+        emit(ExtensionEvent.Kind.CHANNEL_REMOVED, channel.getOwner(), channel.getName(), null, null);
+    }
+    
+    /*
+     * Makes the changes of the current command visible to snapshot readers, all at once.
+     */
+    private void publish() {
+        epoch++;
+        snapshot = new ModelSnapshot(epoch, userIndex, channelIndex);
+        if (changeStream != null) {
+            changeStream.commit(epoch);
+        }
+        flushEvents();
+    }
+    
+    /*
+     * Events for extensions are collected while a command runs and handed to the hub as one
+     * batch when it completes: at publish() for commands that change the model, and explicitly
+     * by the message commands, which do not publish.
+     */
+    private void emit(ExtensionEvent.Kind kind, int userId, String channelName,
+                      String previousNickname, Command command) {
+        if (extensionHub != null) {
+            pendingEvents.add(new ExtensionEvent(kind, userId, getNickname(userId), channelName,
+                                                 previousNickname, command));
+        }
+    }
+    
+    private void flushEvents() {
+        if (extensionHub != null && !pendingEvents.isEmpty()) {
+            extensionHub.dispatch(Collections.unmodifiableList(pendingEvents));
+            pendingEvents = new ArrayList<ExtensionEvent>();
+        }
+    }
+
+
+    /**
+     * Turns on store-and-forward delivery. From then on, a user who disconnects under a nickname
+     * it chose with NICK keeps receiving the messages of the public channels it was in, into a
+     * queue in the store; the queue is handed over when a user takes that nickname again.
+     *
+     * @param offlineStore The store that holds the queues of disconnected nicknames
+     */
+    public void enableOfflineDelivery(OfflineStore offlineStore) {
+        this.offlineStore = offlineStore;
+    }
+
+    /**
+     * Takes the messages that were captured for a user's nickname while it was offline, so that
+     * the backend can send them to the user in one burst. Each batch is only returned once.
+     *
+     * @param userId The user that has just taken back its nickname
+     * @return The captured messages, oldest first; empty if there are none
+     */
+    public List<String> drainOfflineMessages(int userId) {
+        User user = users.get(userId);
+        return user == null ? Collections.<String>emptyList() : user.takeOfflineMessages();
+    }
+
+
+    /**
+     * Caps the number of channels that may exist at once, as a {@link TenantHost} does for each
+     * of its tenants. Creating a channel beyond the quota fails with QUOTA_EXCEEDED.
+     *
+     * @param channelQuota The most channels allowed, or 0 for no limit
+     */
+    public void setChannelQuota(int channelQuota) {
+        this.channelQuota = channelQuota;
+    }
+
+    /**
+     * @return The number of users currently registered
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Starts or stops publishing the changes to users and channels, batched per command, as
+     * {@link ReplicationServer} does to feed read replicas.
+     *
+     * @param changeStream The stream to record changes into, or null to stop
+     */
+    public void setChangeStream(ChangeStream changeStream) {
+        this.changeStream = changeStream;
+    }
+
+    /**
+     * Connects the model to the extensions of an {@link ExtensionHub}. From then on, the events
+     * of every command are handed to the hub when the command completes.
+     *
+     * @param extensionHub The hub to dispatch events to, or null to stop
+     */
+    public void setExtensionHub(ExtensionHub extensionHub) {
+        this.extensionHub = extensionHub;
+        this.pendingEvents = new ArrayList<ExtensionEvent>();
+    }
+
+    /**
+     * Starts or stops shedding commands under overload. While set, {@link #execute(Command)}
+     * asks the admission control before running each command and answers a shed command with
+     * RATE_LIMITED, and reports how long every command it runs takes.
+     *
+     * @param admission The admission control to consult, or null to run every command
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Starts or stops capturing traffic. While a recorder is set, every register, deregister and
+     * command that runs through {@link #execute(Command)} is written to it.
+     *
+     * @param recorder The recorder to capture into, or null to stop capturing
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Replaces the clock that rate limiting reads, as {@link TrafficReplay} does to replay
+     * throttling exactly as it happened.
+     *
+     * @param clock A source of nanosecond times, as given by {@link System#nanoTime()}
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Runs a command against the model, recording it first if traffic is being captured. The
+     * backend routes commands through here rather than calling
+     * {@link Command#updateServerModel(ServerModel)} directly.
+     *
+     * @param command The command to run
+     * @return The {@link Broadcast} the command produced
+     */
+    public Broadcast execute(Command command) {
+        if (admission != null && !admission.admit(command)) {
+            return Broadcast.error(command, ServerError.RATE_LIMITED);
+        }
+        long startedAt = pinCommandTime(command);
+        try {
+            return command.updateServerModel(this);
+        } finally {
+            unpinCommandTime(startedAt);
+        }
+    }
+
+    /**
+     * The allocation-free version of {@link #execute(Command)}.
+     */
+    public void execute(Command command, BroadcastBuilder out) {
+        if (admission != null && !admission.admit(command)) {
+            out.error(command, ServerError.RATE_LIMITED);
+            return;
+        }
+        long startedAt = pinCommandTime(command);
+        try {
+            command.updateServerModel(this, out);
+        } finally {
+            unpinCommandTime(startedAt);
+        }
+    }
+
+    /*
+     * Shed commands are neither recorded nor timed, so a replay of the recording runs exactly
+     * the commands that ran here.
+     */
+    private long pinCommandTime(Command command) {
+        commandTime = clock.getAsLong();
+        commandTimePinned = true;
+        touch(command.getSenderId());
+        if (recorder != null) {
+            recorder.command(commandTime, command);
+        }
+        return admission == null ? 0 : admission.commandStarted();
+    }
+
+    private void unpinCommandTime(long startedAt) {
+        commandTimePinned = false;
+        if (admission != null) {
+            admission.commandFinished(startedAt);
+        }
+    }
+
+    private long now() {
+        return commandTimePinned ? commandTime : clock.getAsLong();
+    }
+
+
+    //==========================================================================
+    // Idle connections
+    //==========================================================================
+
+    /**
+     * Turns on idle detection. A user that has sent nothing for {@code keepaliveNanos} is due a
+     * keepalive ping; if it still sends nothing until {@code idleTimeoutNanos} after its last
+     * activity, it is deregistered by the next {@link #sweepIdleUsers()}. Deadlines are kept in
+     * a {@link TimingWheel}, so the cost per user is constant however many are connected.
+     *
+     * @param keepaliveNanos How long a user may be silent before it is pinged
+     * @param idleTimeoutNanos How long a user may be silent before it is disconnected
+     */
+    public void enableIdleDetection(long keepaliveNanos, long idleTimeoutNanos) {
+        if (keepaliveNanos <= 0 || idleTimeoutNanos <= keepaliveNanos) {
+            throw new IllegalArgumentException("the idle timeout must come after the keepalive");
+        }
+        long now = now();
+        this.keepaliveNanos = keepaliveNanos;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.idleWheel = new TimingWheel(Math.max(1, keepaliveNanos / 64), 256, now);
+        for (int userId : users.userIds()) {
+            touch(userId);
+        }
+    }
+
+    /**
+     * Records that a user is alive, pushing back its keepalive. Commands that run through
+     * {@link #execute(Command)} count already; the backend calls this for anything else that
+     * shows the connection is alive, such as the reply to a ping.
+     *
+     * @param userId The user that was heard from
+     */
+    public void touch(int userId) {
+        User user = users.get(userId);
+        if (idleWheel != null && user != null) {
+            user.setPinged(false);
+            idleWheel.schedule(userId, now() + keepaliveNanos);
+        }
+    }
+
+    /**
+     * Advances idle detection to the current time. Users that are due a keepalive are returned
+     * for the backend to ping; users whose idle timeout has passed are deregistered together,
+     * under one published snapshot. The backend calls this from a timer, typically a few times
+     * per keepalive interval.
+     *
+     * @return The users to ping and the disconnect broadcasts of the users that were removed
+     */
+    public IdleSweep sweepIdleUsers() {
+        if (idleWheel == null) {
+            return new IdleSweep(new int[0], Collections.<Broadcast>emptyList());
+        }
+        long now = now();
+        List<Integer> due = new ArrayList<Integer>();
+        idleWheel.advance(now, due::add);
+        int[] pings = new int[due.size()];
+        int pingCount = 0;
+        List<Broadcast> disconnects = new ArrayList<Broadcast>();
+        for (int userId : due) {
+            User user = users.get(userId);
+            if (!user.isPinged()) {
+                user.setPinged(true);
+                idleWheel.schedule(userId, now + idleTimeoutNanos - keepaliveNanos);
+                pings[pingCount++] = userId;
+            } else {
+                disconnects.add(removeUser(userId));
+            }
+        }
+        if (!disconnects.isEmpty()) {
+            publish();
+        }
+        return new IdleSweep(Arrays.copyOf(pings, pingCount), disconnects);
+    }
+
+
+    //==========================================================================
+    // Rate limiting
+    //==========================================================================
+
+    /**
+     * Takes a token from the sender's message bucket and from the bucket of the channel being
+     * messaged. Called before a {@link MessageCommand} does any other work. Only a member is
+     * charged to the channel's bucket, so outsiders cannot throttle the channel; and if the
+     * channel's bucket refuses, the sender's token is given back.
+     *
+     * @param senderId The user ID of the sender of the message
+     * @param channelName The channel the message is sent to, or null for a multi-channel message,
+     *                    whose channels are throttled one by one as it is delivered
+     * @return true if the message may be processed, false if it is throttled
+     */
+    public boolean admitMessage(int senderId, String channelName) {
+        User user = users.get(senderId);
+        long now = now();
+        if (user != null && !user.getMessageBucket().tryAcquire(now)) {
+            return false;
+        }
+        Channel channel = getChannelFromName(channelName);
+        if (channel == null || !channel.hasUser(senderId)
+                || channel.getMessageBucket().tryAcquire(now)) {
+            return true;
+        }
+        if (user != null) {
+            user.getMessageBucket().release();
+        }
+        return false;
+    }
+
+    /**
+     * Takes a token from the sender's channel creation bucket. Called before a
+     * {@link CreateCommand} does any other work.
+     *
+     * @param senderId The user ID of the user creating a channel
+     * @return true if the channel may be created, false if the creation is throttled
+     */
+    public boolean admitCreate(int senderId) {
+        User user = users.get(senderId);
+        return user == null || user.getCreateBucket().tryAcquire(now());
+    }
+
+
+    //==========================================================================
+    // Hot channels
+    //==========================================================================
+
+    /*
+     * Counts a message sent into a channel, and promotes the channel if it has become hot. Hot
+     * channels share one encoded member array between all their messages, and FanOut gives them
+     * a delivery thread of their own that flushes their frames in batches.
+     */
+    private void recordMessage(Channel channel) {
+        long now = now();
+        channel.getMessageRate().record(now);
+        if (!channel.isHot() && frameRate(channel, now) >= HOT_FRAMES_PER_SECOND) {
+            channel.setHot(true);
+            hotChannels.add(channel);
+            hotPromotions++;
+        }
+        if (++messagesSinceSweep >= SWEEP_INTERVAL) {
+            messagesSinceSweep = 0;
+            sweepHotChannels(now);
+        }
+    }
+
+    private static double frameRate(Channel channel, long now) {
+        return channel.getMessageRate().perSecond(now) * channel.size();
+    }
+
+    /**
+     * Demotes the hot channels that have cooled down. This already happens every
+     * {@link #SWEEP_INTERVAL} messages; a backend may also call it from a timer, so that channels
+     * which went quiet along with the rest of the server are demoted too.
+     */
+    public void sweepHotChannels() {
+        sweepHotChannels(now());
+    }
+
+    private void sweepHotChannels(long now) {
+        if (hotChannels.isEmpty()) {
+            return;
+        }
+        Iterator<Channel> hot = hotChannels.iterator();
+        while (hot.hasNext()) {
+            Channel channel = hot.next();
+            if (frameRate(channel, now) < COOL_FRAMES_PER_SECOND) {
+                channel.setHot(false);
+                hot.remove();
+                hotDemotions++;
+            }
+        }
+    }
+
+
     //==========================================================================
     // Model update functions
     //==========================================================================
     // TODO: Add functions that update your model
 
     public Broadcast newNickname(int userId, String newNickname, Command command) {
-        if (users.containsValue(newNickname)) {
+        if (nicknames.lookup(newNickname) >= 0) {
             return Broadcast.error(command, ServerError.NAME_ALREADY_IN_USE);
         }
+        User user = users.get(userId);
+        String oldNickname = nicknames.name(user.getNickname());
+        nicknames.release(user.getNickname());
+        user.setNickname(bindNickname(userId, newNickname));
+        user.setIdentified(true);
+        if (offlineStore != null) {
+            user.setOfflineMessages(offlineStore.reclaim(newNickname));
+        }
+        userIndex = userIndex.put(userId, newNickname);
+        if (changeStream != null) {
+            changeStream.userPut(userId, newNickname);
+        }
+        for (Channel channel : user.getChannels()) {
+            channel.invalidateNames();
+            channel.getMembershipLog().recordLeave(oldNickname);
+            channel.getMembershipLog().recordJoin(newNickname);
+        }
+        emit(ExtensionEvent.Kind.RENAMED, userId, null, oldNickname, null);
+        publish();
         return Broadcast.okay(command, channelsWithUser(userId));
     }
     
     public Broadcast createChannel(String channelName, int senderId, String sender, 
-                                   Command command) {
-        if(channels.contains(channelName)) {
+                                   boolean inviteOnly, Command command) {
+        if(getChannelFromName(channelName) != null) {
             return Broadcast.error(command, ServerError.CHANNEL_ALREADY_EXISTS);
         }
-        channels.add(new Channel(senderId, sender, false));
+        if (channelQuota > 0 && channels.size() >= channelQuota) {
+            return Broadcast.error(command, ServerError.QUOTA_EXCEEDED);
+        }
+        addChannel(new Channel(senderId, channelName, inviteOnly, membershipArena,
+                               channelsCreated++));
+        publish();
         
         Set<String> senderSet = new TreeSet<String>();
         senderSet.add(sender);
@@ -159,60 +781,178 @@ public final class ServerModel implements ServerModelApi {
     
     public Broadcast joinChannel(String channelName, int senderId, String sender, 
                                  Command command) {
-        TreeSet<String> currentChannelUsersNicknames = new TreeSet<String>();
-        Iterator<Channel> allChannelsIterator = channels.iterator();
-        if(channels.contains(getChannelFromName(channelName))) {
-        while(allChannelsIterator.hasNext()) {
-            Channel currentChannel = allChannelsIterator.next();
-            if (currentChannel.getName().equals(channelName)) {
-                if(currentChannel.isPrivate()) {
-                    return Broadcast.error(command, ServerError.JOIN_PRIVATE_CHANNEL);
-                }
-                currentChannel.addUser(senderId);
-                Iterator<Integer> currentChannelIds = currentChannel.getUsers().iterator();
-                while(allChannelsIterator.hasNext()) {
-                    Channel currentId = allChannelsIterator.next();
-                    currentChannelUsersNicknames.add(users.get(currentId));
-                }
-                return Broadcast.names(command, currentChannelUsersNicknames, 
-                                       users.get(currentChannel.getOwner()));
-            }
+        Channel currentChannel = getChannelFromName(channelName);
+        if(currentChannel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
         }
+        if(currentChannel.isPrivate()) {
+            return Broadcast.error(command, ServerError.JOIN_PRIVATE_CHANNEL);
         }
-        return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        addMember(currentChannel, senderId);
+        publish();
+        return namesOrJoin(currentChannel, command);
+    }
+    
+    /*
+     * Builds the reply to a JOIN or INVITE. Ordinary channels send the full NAMES list along with
+     * the join; large channels only announce the join, and the new member pages through the
+     * member list with NAMES commands instead of receiving it all in one frame.
+     */
+    private Broadcast namesOrJoin(Channel channel, Command command) {
+        Set<String> members = (Set<String>) getUsers(channel.getName());
+        if (channel.isLarge()) {
+            return Broadcast.okay(command, members);
+        }
+        return Broadcast.names(command, members, getNickname(channel.getOwner()));
     }
     
     public Broadcast message(String channelName, String sender, Command command) {
         Channel currentChannel = getChannelFromName(channelName);
-        if(!channels.contains(channelName)) {
+        if(currentChannel == null) {
             return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
         }
-        if(!currentChannel.getUsers().contains(sender)) {
+        if(!currentChannel.hasUser(getUserId(sender))) {
             return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
         }
+        recordMessage(currentChannel);
         Set<String> usersInChannel = (Set<String>) getUsers(channelName);
-        
+        captureOffline(channelName, command);
+        emit(ExtensionEvent.Kind.MESSAGE, getUserId(sender), channelName, null, command);
+        flushEvents();
         return Broadcast.okay(command, usersInChannel);
     }
     
+    /*
+     * The allocation-free version of message, used by MessageCommand when it runs with a
+     * BroadcastBuilder: the recipients are copied as user IDs into the builder's reusable buffer
+     * instead of being resolved into a new set of nicknames.
+     */
+    public void message(String channelName, int senderId, Command command, BroadcastBuilder out) {
+        Channel currentChannel = getChannelFromName(channelName);
+        if(currentChannel == null) {
+            out.error(command, ServerError.NO_SUCH_CHANNEL);
+            return;
+        }
+        if(!currentChannel.hasUser(senderId)) {
+            out.error(command, ServerError.USER_NOT_IN_CHANNEL);
+            return;
+        }
+        recordMessage(currentChannel);
+        out.okay(command);
+        int[] recipients = out.recipientBuffer(currentChannel.size());
+        out.setRecipientCount(currentChannel.copyUserIds(recipients));
+        captureOffline(channelName, command);
+        emit(ExtensionEvent.Kind.MESSAGE, senderId, channelName, null, command);
+        flushEvents();
+    }
+    
+    /*
+     * Queues a delivered message for the identities that were in the channel when they went
+     * offline. The frame is only encoded if someone is actually waiting for the channel.
+     */
+    private void captureOffline(String channelName, Command command) {
+        if (offlineStore != null && offlineStore.isWatched(channelName)) {
+            offlineStore.capture(channelName, command.toString());
+        }
+    }
+    
+    /**
+     * Delivers a direct message. The recipient is found through the nickname index and the
+     * message goes to the two users only, with no channel involved. Direct messages are never
+     * queued for a recipient who is offline: a nickname is not an authenticated identity, so
+     * whoever took it next would read them.
+     */
+    public Broadcast directMessage(String recipient, String sender, Command command) {
+        int recipientId = getUserId(recipient);
+        if (recipientId < 0) {
+            return Broadcast.error(command, ServerError.NO_SUCH_USER);
+        }
+        emitDirect(command);
+        Set<String> recipients = new TreeSet<String>();
+        recipients.add(sender);
+        recipients.add(recipient);
+        return Broadcast.okay(command, recipients);
+    }
+    
+    /*
+     * The allocation-free version of directMessage.
+     */
+    public void directMessage(String recipient, int senderId, Command command, 
+                              BroadcastBuilder out) {
+        int recipientId = getUserId(recipient);
+        if (recipientId < 0) {
+            out.error(command, ServerError.NO_SUCH_USER);
+            return;
+        }
+        emitDirect(command);
+        out.okay(command);
+        int[] recipients = out.recipientBuffer(2);
+        recipients[0] = senderId;
+        recipients[1] = recipientId;
+        out.setRecipientCount(recipientId == senderId ? 1 : 2);
+    }
+    
+    private void emitDirect(Command command) {
+        emit(ExtensionEvent.Kind.MESSAGE, command.getSenderId(), null, null, command);
+        flushEvents();
+    }
+    
+    public Broadcast sync(String channelName, int senderId, String sender, Command command) {
+        Channel currentChannel = getChannelFromName(channelName);
+        if (currentChannel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (!currentChannel.hasUser(senderId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        Set<String> senderSet = new TreeSet<String>();
+        senderSet.add(sender);
+        return Broadcast.okay(command, senderSet);
+    }
+    
+    /**
+     * Checks a request for a page of a channel's members. The sender must be in the channel; the
+     * page itself is read by the output stage with {@link #getUsersPage(String, int, int)}.
+     */
+    public Broadcast names(String channelName, int senderId, String sender, Command command) {
+        Channel currentChannel = getChannelFromName(channelName);
+        if (currentChannel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (!currentChannel.hasUser(senderId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.okay(command, Collections.singleton(sender));
+    }
+    
+    public Broadcast list(String prefix, String sender, Command command) {
+        if (!prefix.isEmpty() && !isValidName(prefix)) {
+            return Broadcast.error(command, ServerError.INVALID_NAME);
+        }
+        Set<String> senderSet = new TreeSet<String>();
+        senderSet.add(sender);
+        return Broadcast.okay(command, senderSet);
+    }
+    
     public Broadcast leave(String channelName, int senderId, String sender, 
                            Command command) {
         Channel currentChannel = getChannelFromName(channelName);
         if (currentChannel == null) {
             return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
         }
-        if(!currentChannel.getUsers().contains(sender)) {
+        if(!currentChannel.hasUser(senderId)) {
             return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
         }
         
         Set<String> previousUsersInChannel = (Set<String>) getUsers(channelName);
         
         if(currentChannel.getOwner() == senderId) {
-            channels.remove(channelName);
+            removeChannel(currentChannel);
         }
         else {
-            currentChannel.removeUser(senderId);
+            removeMember(currentChannel, senderId);
         }
+        publish();
         return Broadcast.okay(command, previousUsersInChannel);
         
     }
@@ -223,47 +963,261 @@ public final class ServerModel implements ServerModelApi {
         if(currentChannel == null) {
             return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
         }
-        if(!users.containsValue(userToInvite)) {
+        if(nicknames.lookup(userToInvite) < 0) {
             return Broadcast.error(command, ServerError.NO_SUCH_USER);
         }
-        if(this.getOwner(channelName) != sender) {
+        if(!sender.equals(this.getOwner(channelName))) {
             return Broadcast.error(command, ServerError.USER_NOT_OWNER);
         }
         if(!currentChannel.isPrivate()) {
             return Broadcast.error(command, ServerError.INVITE_TO_PUBLIC_CHANNEL);
         }
-        currentChannel.addUser(getUserId(userToInvite));
-        return Broadcast.names(command, (Set<String>) getUsers(channelName), 
-                               users.get(currentChannel.getOwner()));
+        addMember(currentChannel, getUserId(userToInvite));
+        publish();
+        return namesOrJoin(currentChannel, command);
     }
     
     public Broadcast kick(String channelName, int senderId, String sender, Command command,
                          String userToKick) {
         Channel currentChannel = getChannelFromName(channelName);
-        if(!channels.contains(channelName)) {
+        if(currentChannel == null) {
             return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
         }
-        if(!users.containsValue(userToKick)) {
+        if(nicknames.lookup(userToKick) < 0) {
             return Broadcast.error(command, ServerError.NO_SUCH_USER);
         }
-        if(this.getOwner(channelName) != sender) {
+        if(!sender.equals(this.getOwner(channelName))) {
             return Broadcast.error(command, ServerError.USER_NOT_OWNER);
         }
-        if(!currentChannel.getUsers().contains(userToKick)) {
+        if(!currentChannel.hasUser(getUserId(userToKick))) {
             return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
         }
         
         Set<String> previousUsersInChannel = (Set<String>) getUsers(channelName);
         
-        if(currentChannel.getOwner() == senderId) {
-            channels.remove(channelName);
+        if(currentChannel.getOwner() == getUserId(userToKick)) {
+            removeChannel(currentChannel);
         }
         else {
-            currentChannel.removeUser(getUserId(userToKick));
+            removeMember(currentChannel, getUserId(userToKick));
+        }
+        publish();
+        return Broadcast.okay(command, previousUsersInChannel);
+    }
+    
+    
+    /**
+     * Invites many users to a private channel at once. The channel checks are made once; each
+     * user that exists is added, and the members get one NAMES broadcast for the whole batch.
+     *
+     * @param result Receives the outcome for each user
+     */
+    public Broadcast inviteAll(String channelName, String sender, Command command,
+                               List<String> usersToInvite, BulkResult result) {
+        Channel currentChannel = getChannelFromName(channelName);
+        ServerError error = null;
+        if (currentChannel == null) {
+            error = ServerError.NO_SUCH_CHANNEL;
+        } else if (!sender.equals(getOwner(channelName))) {
+            error = ServerError.USER_NOT_OWNER;
+        } else if (!currentChannel.isPrivate()) {
+            error = ServerError.INVITE_TO_PUBLIC_CHANNEL;
+        }
+        if (error != null) {
+            return bulkError(command, usersToInvite, error, result);
+        }
+        boolean changed = false;
+        for (String userToInvite : usersToInvite) {
+            if (nicknames.lookup(userToInvite) < 0) {
+                result.record(userToInvite, ServerError.NO_SUCH_USER);
+            } else {
+                addMember(currentChannel, getUserId(userToInvite));
+                result.record(userToInvite, ServerError.OKAY);
+                changed = true;
+            }
         }
+        if (!changed) {
+            return Broadcast.okay(command, Collections.singleton(sender));
+        }
+        publish();
+        return namesOrJoin(currentChannel, command);
+    }
+    
+    /**
+     * Kicks many users from a channel at once. The channel checks are made once; each user that
+     * is a member is removed (the whole channel, if the owner is among them), and everyone who
+     * was in the channel gets one broadcast for the whole batch.
+     *
+     * @param result Receives the outcome for each user
+     */
+    public Broadcast kickAll(String channelName, String sender, Command command,
+                             List<String> usersToKick, BulkResult result) {
+        Channel currentChannel = getChannelFromName(channelName);
+        if (currentChannel == null) {
+            return bulkError(command, usersToKick, ServerError.NO_SUCH_CHANNEL, result);
+        }
+        if (!sender.equals(getOwner(channelName))) {
+            return bulkError(command, usersToKick, ServerError.USER_NOT_OWNER, result);
+        }
+        Set<String> previousUsersInChannel = (Set<String>) getUsers(channelName);
+        boolean changed = false;
+        boolean ownerKicked = false;
+        for (String userToKick : usersToKick) {
+            if (nicknames.lookup(userToKick) < 0) {
+                result.record(userToKick, ServerError.NO_SUCH_USER);
+                continue;
+            }
+            int userId = getUserId(userToKick);
+            if (!currentChannel.hasUser(userId)) {
+                result.record(userToKick, ServerError.USER_NOT_IN_CHANNEL);
+                continue;
+            }
+            if (userId == currentChannel.getOwner()) {
+                ownerKicked = true;
+            } else {
+                removeMember(currentChannel, userId);
+            }
+            result.record(userToKick, ServerError.OKAY);
+            changed = true;
+        }
+        if (ownerKicked) {
+            removeChannel(currentChannel);
+        }
+        if (!changed) {
+            return Broadcast.okay(command, Collections.singleton(sender));
+        }
+        publish();
         return Broadcast.okay(command, previousUsersInChannel);
     }
     
+    /**
+     * Joins the sender to many public channels at once. The reply is an OKAY to the sender alone;
+     * each joined channel gets its own JOIN broadcast in the result, so a channel's members only
+     * learn of that channel's join and the sender receives the NAMES of each (or pages through
+     * them, for a large channel).
+     *
+     * @param result Receives the outcome and the broadcast for each channel
+     */
+    public Broadcast joinAll(List<String> channelNames, int senderId, String sender, 
+                             Command command, BulkResult result) {
+        boolean changed = false;
+        for (String channelName : channelNames) {
+            Channel currentChannel = getChannelFromName(channelName);
+            if (currentChannel == null) {
+                result.record(channelName, ServerError.NO_SUCH_CHANNEL);
+            } else if (currentChannel.isPrivate()) {
+                result.record(channelName, ServerError.JOIN_PRIVATE_CHANNEL);
+            } else {
+                addMember(currentChannel, senderId);
+                result.record(channelName, ServerError.OKAY);
+                changed = true;
+            }
+        }
+        if (changed) {
+            publish();
+            for (String channelName : result.getSucceeded()) {
+                Command join = new JoinCommand(senderId, sender, channelName);
+                result.recordBroadcast(channelName, 
+                                       namesOrJoin(getChannelFromName(channelName), join));
+            }
+        }
+        return Broadcast.okay(command, Collections.singleton(sender));
+    }
+    
+    /**
+     * Sends one message to several channels. Membership is checked once per channel and the
+     * recipients are the union of the members of every channel the message went to, so a user
+     * in several of them receives the message once.
+     *
+     * @param result Receives the outcome for each channel
+     */
+    public Broadcast messageAll(List<String> channelNames, int senderId, String sender, 
+                                Command command, BulkResult result) {
+        if (!markRecipients(channelNames, senderId, command, result)) {
+            return Broadcast.okay(command, Collections.singleton(sender));
+        }
+        Set<String> recipients = new TreeSet<String>();
+        for (int userId = recipientMarks.nextSetBit(0); userId >= 0; 
+                userId = recipientMarks.nextSetBit(userId + 1)) {
+            recipients.add(getNickname(userId));
+        }
+        recipientMarks.clear();
+        return Broadcast.okay(command, recipients);
+    }
+    
+    /*
+     * The allocation-free version of messageAll; the union is written as user IDs into the
+     * builder, like the single-channel message.
+     */
+    public void messageAll(List<String> channelNames, int senderId, Command command, 
+                           BulkResult result, BroadcastBuilder out) {
+        out.okay(command);
+        if (!markRecipients(channelNames, senderId, command, result)) {
+            out.recipientBuffer(1)[0] = senderId;
+            out.setRecipientCount(1);
+            return;
+        }
+        int[] recipients = out.recipientBuffer(recipientMarks.cardinality());
+        int count = 0;
+        for (int userId = recipientMarks.nextSetBit(0); userId >= 0; 
+                userId = recipientMarks.nextSetBit(userId + 1)) {
+            recipients[count++] = userId;
+        }
+        out.setRecipientCount(count);
+        recipientMarks.clear();
+    }
+    
+    /*
+     * Checks each channel of a multi-channel message and marks the members of every channel it
+     * may go to in recipientMarks. Returns false if it goes to none of them. A channel named more
+     * than once is only sent to once, so it is rate limited, captured and reported once.
+     */
+    private boolean markRecipients(List<String> channelNames, int senderId, Command command,
+                                   BulkResult result) {
+        boolean delivered = false;
+        String frame = null;
+        for (String channelName : new LinkedHashSet<String>(channelNames)) {
+            Channel currentChannel = getChannelFromName(channelName);
+            if (currentChannel == null) {
+                result.record(channelName, ServerError.NO_SUCH_CHANNEL);
+                continue;
+            }
+            if (!currentChannel.hasUser(senderId)) {
+                result.record(channelName, ServerError.USER_NOT_IN_CHANNEL);
+                continue;
+            }
+            if (!currentChannel.getMessageBucket().tryAcquire(now())) {
+                result.record(channelName, ServerError.RATE_LIMITED);
+                continue;
+            }
+            recordMessage(currentChannel);
+            PrimitiveIterator.OfInt members = currentChannel.usersFrom(0);
+            while (members.hasNext()) {
+                recipientMarks.set(members.nextInt());
+            }
+            if (offlineStore != null && offlineStore.isWatched(channelName)) {
+                frame = frame == null ? command.toString() : frame;
+                offlineStore.capture(channelName, frame);
+            }
+            emit(ExtensionEvent.Kind.MESSAGE, senderId, channelName, null, command);
+            result.record(channelName, ServerError.OKAY);
+            delivered = true;
+        }
+        flushEvents();
+        return delivered;
+    }
+    
+    /*
+     * Fails every target of a bulk command with the same channel-level error.
+     */
+    private static Broadcast bulkError(Command command, List<String> targets, ServerError error,
+                                       BulkResult result) {
+        for (String target : targets) {
+            result.record(target, error);
+        }
+        return Broadcast.error(command, error);
+    }
+    
     
     //==========================================================================
     // Server model queries
@@ -271,6 +1225,18 @@ public final class ServerModel implements ServerModelApi {
     // You may also use them in your implementation.
     //==========================================================================
 
+    /**
+     * Gets an immutable snapshot of the users and channels on the server as of the last completed
+     * command. The snapshot can be read from any thread, for as long as needed, without blocking
+     * or being affected by later commands. Read-heavy callers such as dashboards and bots should
+     * poll this rather than the queries below, which read the live model.
+     *
+     * @return The most recently published {@link ModelSnapshot}
+     */
+    public ModelSnapshot snapshot() {
+        return snapshot;
+    }
+
     /**
      * Gets the user ID currently associated with the given nickname. The returned ID is -1 if the
      * nickname is not currently in use
@@ -279,12 +1245,11 @@ public final class ServerModel implements ServerModelApi {
      * @return The user ID of the user with the argued nickname if such a user exists, otherwise -1
      */
     public int getUserId(String nickname) {
-        for (Map.Entry<Integer, String> currentUser : users.entrySet()) {
-            if (currentUser.getValue().equals(nickname)) {
-                return currentUser.getKey();
-            }
+        int handle = nicknames.lookup(nickname);
+        if (handle < 0) {
+            return -1;
         }
-        return -1;
+        return userIdsByNickname[handle];
     }
 
     /**
@@ -296,8 +1261,9 @@ public final class ServerModel implements ServerModelApi {
      *          null
      */
     public String getNickname(int userId) {
-        if(users.containsKey(userId)) {
-            return users.get(userId); 
+        User user = users.get(userId);
+        if(user != null) {
+            return nicknames.name(user.getNickname()); 
         }
         return null;
     }
@@ -311,7 +1277,11 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of registered user nicknames
      */
     public Collection<String> getRegisteredUsers() {
-        return users.values();
+        Collection<String> registered = new ArrayList<>(users.size());
+        for (int userId : users.userIds()) {
+            registered.add(getNickname(userId));
+        }
+        return registered;
     }
 
     /**
@@ -323,17 +1293,50 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of channel names
      */
     public Collection<String> getChannels() {
-        Collection<String> channelNames = new TreeSet<>();
-        for (Channel c : channels) {
-            channelNames.add(c.getName());
+        return new TreeSet<String>(channels.keySet());
+    }
+
+    /**
+     * Gets one page of the names of the channels that start with the given prefix, in
+     * alphabetical order. The first page is requested with a null cursor, and each later page
+     * with the {@link ChannelPage#getNextCursor()} of the page before it. A page costs a
+     * logarithmic seek into the channel index plus the size of the page, however many channels
+     * there are.
+     *
+     * @param prefix The prefix the channel names must start with; empty for all channels
+     * @param cursor The last channel name of the previous page, or null for the first page
+     * @param pageSize The largest number of channel names to return; at least 1
+     * @return The page of channel names and the cursor of the next page
+     * @throws IllegalArgumentException If the page size is less than 1
+     */
+    public ChannelPage listChannels(String prefix, String cursor, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        List<String> channelNames = new ArrayList<>();
+        NavigableMap<String, Channel> matching;
+        if (cursor != null && cursor.compareTo(prefix) >= 0) {
+            matching = channels.tailMap(cursor, false);
+        } else {
+            matching = channels.tailMap(prefix, true);
+        }
+        for (String name : matching.keySet()) {
+            if (!name.startsWith(prefix)) {
+                return new ChannelPage(channelNames, null);
+            }
+            if (channelNames.size() == pageSize) {
+                return new ChannelPage(channelNames, channelNames.get(pageSize - 1));
+            }
+            channelNames.add(name);
         }
-        return channelNames;
+        return new ChannelPage(channelNames, null);
     }
 
     /**
      * Gets a collection of the nicknames of all the users in a given channel. The collection is
-     * empty if no channel with the given name exists. Modifications to the returned collection
-     * should not affect the server state.
+     * empty if no channel with the given name exists. Either way it is unmodifiable: a channel's
+     * collection is shared by every caller until its membership changes, and is never changed
+     * after it is returned.
      *
      * This method is provided for testing.
      *
@@ -342,11 +1345,165 @@ public final class ServerModel implements ServerModelApi {
      */
     public Collection<String> getUsers(String channelName) {
         Channel thatChannel = getChannelFromName(channelName);
-        Set<String> nicknames = new TreeSet<>();
-        for(Integer thatUser : thatChannel.getUsers()) {
-            nicknames.add(users.get(thatUser));
+        if (thatChannel == null) {
+            return Collections.emptySet();
+        }
+        Set<String> names = thatChannel.getNamesView();
+        if (names == null) {
+            Set<String> nicknames = new TreeSet<>();
+            PrimitiveIterator.OfInt members = thatChannel.usersFrom(0);
+            while (members.hasNext()) {
+                nicknames.add(getNickname(members.nextInt()));
+            }
+            names = Collections.unmodifiableSet(nicknames);
+            thatChannel.setNamesView(names);
+        }
+        return names;
+    }
+
+    /**
+     * Gets one page of the nicknames of the users in a given channel, in order of user ID. The
+     * first page is requested with a cursor of 0, and each later page with the
+     * {@link NamesPage#getNextCursor()} of the page before it. The page is empty if no channel
+     * with the given name exists.
+     *
+     * @param channelName The channel for which to get member nicknames
+     * @param cursor The smallest user ID to include in the page; negative cursors, which can
+     *               only come from a misbehaving client, read as 0
+     * @param pageSize The largest number of nicknames to return; at least 1
+     * @return The page of nicknames and the cursor of the next page
+     * @throws IllegalArgumentException If the page size is less than 1
+     */
+    public NamesPage getUsersPage(String channelName, int cursor, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        cursor = Math.max(0, cursor);
+        List<String> nicknames = new ArrayList<>();
+        Channel thatChannel = getChannelFromName(channelName);
+        if (thatChannel == null) {
+            return new NamesPage(nicknames, -1);
+        }
+        PrimitiveIterator.OfInt members = thatChannel.usersFrom(cursor);
+        while (members.hasNext() && nicknames.size() < pageSize) {
+            int userId = members.nextInt();
+            nicknames.add(getNickname(userId));
+            cursor = userId + 1;
+        }
+        return new NamesPage(nicknames, members.hasNext() ? cursor : -1);
+    }
+
+    /**
+     * Gets the user IDs of all the users in a given channel, in ascending order. The array is
+     * empty if no channel with the given name exists. This is the recipient list handed to
+     * {@link FanOut} when a message is delivered. For a hot channel the same array is returned by
+     * every call until the membership changes, so it must not be modified.
+     *
+     * @param channelName The channel for which to get member IDs
+     * @return The user IDs of the members of the argued channel
+     */
+    public int[] getUserIds(String channelName) {
+        Channel thatChannel = getChannelFromName(channelName);
+        if (thatChannel == null) {
+            return new int[0];
+        }
+        return thatChannel.getUserIds();
+    }
+
+    /**
+     * Gets the compression context of a user's connection.
+     *
+     * @param userId The user to look up
+     * @return The user's {@link FrameCompressor}, or null if its connection is not compressed
+     */
+    public FrameCompressor getCompressor(int userId) {
+        User user = users.get(userId);
+        return user == null ? null : user.getCompressor();
+    }
+
+    /**
+     * @param channelName The channel to check
+     * @return true if the channel exists and is currently hot
+     */
+    public boolean isHot(String channelName) {
+        Channel thatChannel = getChannelFromName(channelName);
+        return thatChannel != null && thatChannel.isHot();
+    }
+
+    /**
+     * Gets the names of the channels that are currently hot, in alphabetical order.
+     *
+     * @return The names of the hot channels
+     */
+    public Collection<String> getHotChannels() {
+        Set<String> names = new TreeSet<String>();
+        for (Channel channel : hotChannels) {
+            names.add(channel.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Gets the estimated message rate of a channel, which decays when the channel goes quiet.
+     *
+     * @param channelName The channel to measure
+     * @return Messages per second, or 0 if no channel with the given name exists
+     */
+    public double getMessageRate(String channelName) {
+        Channel thatChannel = getChannelFromName(channelName);
+        return thatChannel == null ? 0 : thatChannel.getMessageRate().perSecond(now());
+    }
+
+    /**
+     * @return The number of times a channel has been promoted to hot since the server started
+     */
+    public long getHotPromotions() {
+        return hotPromotions;
+    }
+
+    /**
+     * @return The number of times a hot channel has cooled down since the server started
+     */
+    public long getHotDemotions() {
+        return hotDemotions;
+    }
+
+    /**
+     * Gets the membership version of a channel, which goes up by one on every join and leave.
+     * The version is -1 if no channel with the given name exists.
+     *
+     * @param channelName The channel for which to get the membership version
+     * @return The current membership version of the argued channel
+     */
+    public long getMembershipVersion(String channelName) {
+        Channel thatChannel = getChannelFromName(channelName);
+        if (thatChannel == null) {
+            return -1;
+        }
+        return thatChannel.getMembershipLog().getVersion();
+    }
+
+    /**
+     * Gets the joins and leaves of a channel since the given membership version. If the channel
+     * has changed too much since then to describe the difference, or the version is not one the
+     * channel ever had (a negative version, or one seen before the channel was removed and
+     * created again), a full snapshot of its members is returned instead. The result is null if no channel with the given name exists.
+     *
+     * @param channelName The channel for which to get membership changes
+     * @param sinceVersion The membership version the client last saw
+     * @return The changes since that version, or a snapshot of the current members
+     */
+    public MembershipDelta getMembershipDelta(String channelName, long sinceVersion) {
+        Channel thatChannel = getChannelFromName(channelName);
+        if (thatChannel == null) {
+            return null;
+        }
+        MembershipLog log = thatChannel.getMembershipLog();
+        MembershipDelta delta = log.since(sinceVersion);
+        if (delta == null) {
+            return MembershipDelta.snapshot(log.getVersion(), (Set<String>) getUsers(channelName));
         }
-        return nicknames;
+        return delta;
     }
 
     /**
@@ -359,7 +1516,7 @@ public final class ServerModel implements ServerModelApi {
      * @return The nickname of the channel owner if such a channel exists, othewise null
      */
     public String getOwner(String channelName) {
-        return users.get(getChannelFromName(channelName).getOwner());
+        return getNickname(getChannelFromName(channelName).getOwner());
     }
 
 }
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/*
+ * The tenant class is one community hosted by a TenantHost: its ServerModel,
+ * the queue of work waiting to run against it, and its metrics.
+ *
+ * Work for a tenant runs on the host's shared executor, one task at a time
+ * and in the order it was submitted, so each model still sees a single
+ * command thread even though no thread belongs to any one tenant. A turn
+ * runs at most TASKS_PER_TURN tasks before the tenant goes to the back of
+ * the executor's queue, so one busy tenant cannot hold a shared thread.
+ *
+ * The model is created when work first arrives, and dropped again when the
+ * host evicts the tenant after it has had no users for a while. With nobody
+ * connected every channel has gone along with its owner, so all that is
+ * left of a tenant is its offline messages; eviction writes those to the
+ * tenant's directory and loading reads them back.
+ *
+ * The backend's user IDs are unique across the whole host, but a model
+ * indexes users directly by ID, so each tenant hands out small dense IDs of
+ * its own, which the backend uses in the commands it submits to it.
+ */
+
+public class Tenant {
+    static final int TASKS_PER_TURN = 64;
+    static final String SAVED_OFFLINE_FILE = "offline.saved";
+
+    private final String name;
+    private final File directory;
+    private final int userQuota;
+    private final int channelQuota;
+    private final Executor executor;
+    private final LongSupplier clock;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean scheduled;
+
+    /*
+     * The model and its offline store are only touched by the tenant's tasks; the model
+     * reference is volatile so that metrics can read its snapshot from other threads.
+     */
+    private volatile ServerModel model;
+    private OfflineStore offlineStore;
+
+    /*
+     * User IDs in use, guarded by the tenant's lock. An ID is taken when a user connects and
+     * only given back once its deregistration has run, so it cannot be registered twice.
+     */
+    private final BitSet userIds;
+    private int userCount;
+
+    private volatile long lastActive;
+    private final AtomicLong commands;
+    private final AtomicLong connections;
+    private final AtomicLong refusedConnections;
+    private final AtomicLong loads;
+    private final AtomicLong evictions;
+    private final AtomicLong failures;
+
+    Tenant(String name, File directory, int userQuota, int channelQuota, Executor executor,
+           LongSupplier clock) {
+        this.name = name;
+        this.directory = directory;
+        this.userQuota = userQuota;
+        this.channelQuota = channelQuota;
+        this.executor = executor;
+        this.clock = clock;
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.scheduled = new AtomicBoolean();
+        this.userIds = new BitSet();
+        this.lastActive = clock.getAsLong();
+        this.commands = new AtomicLong();
+        this.connections = new AtomicLong();
+        this.refusedConnections = new AtomicLong();
+        this.loads = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.failures = new AtomicLong();
+    }
+
+    /**
+     * Connects a user to the tenant. The registration runs on the tenant's turn, and its
+     * {@link Broadcast} is handed to {@code out} on the thread that ran it.
+     *
+     * @param out Receives the result of the registration
+     * @return The user ID to put in the user's commands, or -1 if the tenant already has as many
+     *         users as its quota allows
+     */
+    public int connect(Consumer<Broadcast> out) {
+        int userId;
+        synchronized (this) {
+            if (userQuota > 0 && userCount >= userQuota) {
+                refusedConnections.incrementAndGet();
+                return -1;
+            }
+            userId = userIds.nextClearBit(0);
+            userIds.set(userId);
+            userCount++;
+        }
+        connections.incrementAndGet();
+        submit(model -> out.accept(model.registerUser(userId)));
+        return userId;
+    }
+
+    /**
+     * Disconnects a user, on the tenant's turn.
+     *
+     * @param userId The ID returned by {@link #connect(Consumer)}
+     * @param out Receives the result of the deregistration
+     */
+    public void disconnect(int userId, Consumer<Broadcast> out) {
+        submit(model -> {
+            try {
+                out.accept(model.deregisterUser(userId));
+            } finally {
+                synchronized (this) {
+                    userIds.clear(userId);
+                    userCount--;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a command against the tenant's model, on the tenant's turn.
+     *
+     * @param command A command whose sender ID was returned by {@link #connect(Consumer)}
+     * @param out Receives the result of the command
+     */
+    public void execute(Command command, Consumer<Broadcast> out) {
+        submit(model -> {
+            commands.incrementAndGet();
+            out.accept(model.execute(command));
+        });
+    }
+
+    /**
+     * Runs any other work against the tenant's model on the tenant's turn, such as draining a
+     * user's offline messages. The model is loaded first if it has been evicted.
+     *
+     * @param task The work to run
+     */
+    public void submit(Consumer<ServerModel> task) {
+        tasks.add(() -> {
+            try {
+                task.accept(load());
+            } finally {
+                lastActive = clock.getAsLong();
+            }
+        });
+        schedule();
+    }
+
+    /*
+     * Queues the tenant's eviction if it has been without users for the given time. The
+     * conditions are checked again on the tenant's turn, since a user may connect meanwhile.
+     */
+    boolean evictIfIdle(long idleNanos) {
+        if (model == null || !isIdle(idleNanos)) {
+            return false;
+        }
+        tasks.add(() -> {
+            if (model != null && isIdle(idleNanos)) {
+                evict();
+            }
+        });
+        schedule();
+        return true;
+    }
+
+    private boolean isIdle(long idleNanos) {
+        synchronized (this) {
+            if (userCount > 0) {
+                return false;
+            }
+        }
+        return clock.getAsLong() - lastActive >= idleNanos;
+    }
+
+    private ServerModel load() {
+        if (model == null) {
+            ServerModel loaded = new ServerModel();
+            loaded.setClock(clock);
+            loaded.setChannelQuota(channelQuota);
+            offlineStore = new OfflineStore(new File(directory, "offline"));
+            try {
+                offlineStore.restoreFrom(new File(directory, SAVED_OFFLINE_FILE));
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+            loaded.enableOfflineDelivery(offlineStore);
+            model = loaded;
+            loads.incrementAndGet();
+        }
+        return model;
+    }
+
+    /*
+     * Drops the model. If its offline messages cannot be saved, the tenant stays loaded.
+     */
+    private void evict() {
+        try {
+            offlineStore.saveTo(new File(directory, SAVED_OFFLINE_FILE));
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            return;
+        }
+        model = null;
+        offlineStore = null;
+        evictions.incrementAndGet();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            for (int i = 0; i < TASKS_PER_TURN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            schedule();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the tenant's model is in memory, false if it has not been loaded yet or
+     *         has been evicted
+     */
+    public boolean isLoaded() {
+        return model != null;
+    }
+
+    public synchronized int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return The number of channels, as of the model's latest snapshot; 0 while not loaded
+     */
+    public int getChannelCount() {
+        ServerModel current = model;
+        return current == null ? 0 : current.snapshot().getChannelIndex().size();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return The number of connections turned away by the user quota
+     */
+    public long getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of tasks that threw, and of offline message files that could not be
+     *         read or written
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+/*
+ * The tenant host class runs many independent communities in one process.
+ * Each Tenant has a ServerModel of its own, with its own users, nicknames
+ * and channels, but they all share the backend's connections and the host's
+ * executor: a tenant has no threads of its own, and costs a model's worth of
+ * memory only while someone is using it.
+ *
+ * The backend finds a connection's tenant by name when it connects, and from
+ * then on sends that connection's commands to the tenant. Every tenant is
+ * held to the same quotas: at most userQuota users connected at once, and
+ * at most channelQuota channels. A backend timer calls evictIdleTenants to
+ * drop the models of tenants that have been without users for
+ * idleEvictNanos, saving what is left of them to the tenant's directory
+ * under the host's root.
+ */
+
+public class TenantHost {
+    private final File root;
+    private final Executor executor;
+    private final int userQuota;
+    private final int channelQuota;
+    private final long idleEvictNanos;
+    private final LongSupplier clock;
+    private final ConcurrentMap<String, Tenant> tenants;
+
+    /**
+     * @param root The directory under which each tenant gets a directory of its own
+     * @param executor The executor shared by all tenants
+     * @param userQuota The most users a tenant may have connected at once, or 0 for no limit
+     * @param channelQuota The most channels a tenant may have, or 0 for no limit
+     * @param idleEvictNanos How long a tenant must be without users before it is evicted
+     */
+    public TenantHost(File root, Executor executor, int userQuota, int channelQuota,
+                      long idleEvictNanos) {
+        this(root, executor, userQuota, channelQuota, idleEvictNanos, System::nanoTime);
+    }
+
+    public TenantHost(File root, Executor executor, int userQuota, int channelQuota,
+                      long idleEvictNanos, LongSupplier clock) {
+        this.root = root;
+        this.executor = executor;
+        this.userQuota = userQuota;
+        this.channelQuota = channelQuota;
+        this.idleEvictNanos = idleEvictNanos;
+        this.clock = clock;
+        this.tenants = new ConcurrentHashMap<String, Tenant>();
+    }
+
+    /**
+     * Gets a tenant by name, creating it on first use. The tenant's model is only loaded when
+     * work for it arrives.
+     *
+     * @param name The name of the tenant, which must be a valid name by the rules of
+     *             {@link ServerModel#isValidName(String)}, as it also names its directory
+     * @return The tenant
+     * @throws IllegalArgumentException If the name is not valid
+     */
+    public Tenant getTenant(String name) {
+        if (!ServerModel.isValidName(name)) {
+            throw new IllegalArgumentException("invalid tenant name: " + name);
+        }
+        return tenants.computeIfAbsent(name, key -> new Tenant(key, new File(root, key),
+                userQuota, channelQuota, executor, clock));
+    }
+
+    /**
+     * @return Every tenant the host knows of, loaded or not
+     */
+    public Collection<Tenant> getTenants() {
+        return Collections.unmodifiableCollection(tenants.values());
+    }
+
+    /**
+     * Evicts the tenants that have been without users for the idle time given at construction.
+     * Each eviction runs on the tenant's own turn.
+     *
+     * @return The number of tenants queued for eviction
+     */
+    public int evictIdleTenants() {
+        int evicting = 0;
+        for (Tenant tenant : tenants.values()) {
+            if (tenant.evictIfIdle(idleEvictNanos)) {
+                evicting++;
+            }
+        }
+        return evicting;
+    }
+
+    /**
+     * @return The number of tenants whose models are in memory
+     */
+    public int getLoadedCount() {
+        int loaded = 0;
+        for (Tenant tenant : tenants.values()) {
+            if (tenant.isLoaded()) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/*
+ * The timing wheel class keeps one pending deadline per user ID, for
+ * keepalive pings and idle timeouts. It is a hashed timing wheel: time is
+ * cut into ticks of tickNanos, and a deadline goes into the slot of the
+ * first tick at or after it, modulo the number of slots, on a doubly linked list threaded through
+ * arrays indexed by user ID. Scheduling, rescheduling and cancelling are a
+ * few array writes, whatever the number of connections, and advancing the
+ * clock only visits the slots of the ticks that have passed. A deadline
+ * fires on the first advance that reaches its tick, so up to one tick late
+ * but never early.
+ *
+ * Deadlines more than one turn of the wheel ahead simply stay in their slot
+ * until a later turn reaches them. Not thread-safe; it is driven from the
+ * command thread.
+ */
+
+public class TimingWheel {
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final int[] heads;
+    private final int mask;
+    private int[] next;
+    private int[] previous;
+    private int[] slotOf;
+    private long[] deadlines;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos The resolution of the wheel
+     * @param slots The number of slots, a power of two
+     * @param now The current time in nanoseconds
+     */
+    public TimingWheel(long tickNanos, int slots, long now) {
+        if (Integer.bitCount(slots) != 1 || tickNanos <= 0) {
+            throw new IllegalArgumentException("need a positive tick and a power of two slots");
+        }
+        this.tickNanos = tickNanos;
+        this.heads = new int[slots];
+        this.mask = slots - 1;
+        Arrays.fill(heads, NONE);
+        this.next = new int[0];
+        this.previous = new int[0];
+        this.slotOf = new int[0];
+        this.deadlines = new long[0];
+        this.currentTick = Math.floorDiv(now, tickNanos);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the deadline of an ID, replacing any deadline it already had.
+     *
+     * @param id A non-negative ID, such as a user ID
+     * @param deadline The time in nanoseconds at which the ID expires
+     */
+    public void schedule(int id, long deadline) {
+        if (id >= slotOf.length) {
+            grow(id + 1);
+        }
+        cancel(id);
+        long tick = Math.max(-Math.floorDiv(-deadline, tickNanos), currentTick + 1);
+        int slot = (int) (tick & mask);
+        deadlines[id] = deadline;
+        slotOf[id] = slot;
+        previous[id] = NONE;
+        next[id] = heads[slot];
+        if (heads[slot] != NONE) {
+            previous[heads[slot]] = id;
+        }
+        heads[slot] = id;
+        size++;
+    }
+
+    /**
+     * Removes the deadline of an ID, if it has one.
+     */
+    public void cancel(int id) {
+        if (id >= slotOf.length || slotOf[id] == NONE) {
+            return;
+        }
+        if (previous[id] != NONE) {
+            next[previous[id]] = next[id];
+        } else {
+            heads[slotOf[id]] = next[id];
+        }
+        if (next[id] != NONE) {
+            previous[next[id]] = previous[id];
+        }
+        slotOf[id] = NONE;
+        size--;
+    }
+
+    public boolean isScheduled(int id) {
+        return id < slotOf.length && slotOf[id] != NONE;
+    }
+
+    /**
+     * Moves the wheel forward to the given time and removes every ID whose deadline has passed.
+     * The expired IDs are handed to the consumer after they have been removed, so it may schedule
+     * them again.
+     *
+     * @param now The current time in nanoseconds
+     * @param expired Receives each expired ID
+     * @return The number of expired IDs
+     */
+    public int advance(long now, IntConsumer expired) {
+        long targetTick = Math.floorDiv(now, tickNanos);
+        long ticks = Math.min(targetTick - currentTick, heads.length);
+        int[] fired = new int[8];
+        int count = 0;
+        for (long tick = targetTick - ticks + 1; tick <= targetTick; tick++) {
+            int id = heads[(int) (tick & mask)];
+            while (id != NONE) {
+                int following = next[id];
+                if (deadlines[id] <= now) {
+                    cancel(id);
+                    if (count == fired.length) {
+                        fired = Arrays.copyOf(fired, count * 2);
+                    }
+                    fired[count++] = id;
+                }
+                id = following;
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        for (int i = 0; i < count; i++) {
+            expired.accept(fired[i]);
+        }
+        return count;
+    }
+
+    private void grow(int capacity) {
+        int length = Math.max(capacity, Math.max(64, slotOf.length * 2));
+        int old = slotOf.length;
+        next = Arrays.copyOf(next, length);
+        previous = Arrays.copyOf(previous, length);
+        deadlines = Arrays.copyOf(deadlines, length);
+        slotOf = Arrays.copyOf(slotOf, length);
+        Arrays.fill(slotOf, old, length, NONE);
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The token bucket class is responsible for throttling a single stream of
+ * commands, such as the messages of one user or the messages sent into one
+ * channel. It allows a burst of up to capacity commands and then refills at
+ * a steady rate.
+ *
+ * The bucket is stored as a single "theoretical arrival time" in an
+ * AtomicLong (the generic cell rate algorithm), so taking a token is one
+ * compare-and-set and never locks or allocates.
+ */
+
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong arrivalTime;
+
+    /**
+     * Constructs a full {@code TokenBucket}.
+     *
+     * @param capacity The largest burst of commands the bucket allows
+     * @param tokensPerSecond The rate at which the bucket refills
+     */
+    public TokenBucket(int capacity, double tokensPerSecond) {
+        if (capacity < 1 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("bucket needs a capacity and a refill rate");
+        }
+        this.nanosPerToken = (long) (1_000_000_000L / tokensPerSecond);
+        this.burstNanos = nanosPerToken * (capacity - 1);
+        this.arrivalTime = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * Takes one token from the bucket if one is available.
+     *
+     * @return true if the command may proceed, false if it should be throttled
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Takes one token from the bucket as of the given time.
+     *
+     * @param now The current time in nanoseconds, as given by {@link System#nanoTime()}
+     * @return true if the command may proceed, false if it should be throttled
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long current = arrivalTime.get();
+            long start = (current == Long.MIN_VALUE || current - now < 0) ? now : current;
+            if (start - now > burstNanos) {
+                return false;
+            }
+            if (arrivalTime.compareAndSet(current, start + nanosPerToken)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire(long)}, when the command it was taken for
+     * was throttled by another bucket after all.
+     */
+    public void release() {
+        arrivalTime.addAndGet(-nanosPerToken);
+    }
+}
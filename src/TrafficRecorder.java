@@ -0,0 +1,117 @@
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * The traffic recorder class captures what clients do to the model, so that
+ * a production workload can be replayed later by TrafficReplay. Every
+ * register, deregister and command is written as one event: a kind byte,
+ * the time since the previous event, the user ID and, for commands, the
+ * command's wire form. Times and IDs are variable-length encoded and the
+ * whole file is gzipped, so a capture costs a few bytes per command.
+ *
+ * When the recorder is closed against the model it can also write the
+ * model's state fingerprint, which the replay checks its own result
+ * against. A recorder that hits an I/O error stops recording instead of
+ * failing the command that was being recorded.
+ */
+
+public class TrafficRecorder implements Closeable {
+    static final int MAGIC = 0x43485452;
+    static final int VERSION = 1;
+
+    static final int REGISTER = 1;
+    static final int DEREGISTER = 2;
+    static final int COMMAND = 3;
+    static final int END = 4;
+
+    private DataOutputStream out;
+    private long lastTime;
+    private long events;
+    private IOException failure;
+
+    public TrafficRecorder(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), 1 << 16)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        this.lastTime = Long.MIN_VALUE;
+    }
+
+    public void registered(long now, int userId) {
+        write(REGISTER, now, userId, null);
+    }
+
+    public void deregistered(long now, int userId) {
+        write(DEREGISTER, now, userId, null);
+    }
+
+    public void command(long now, Command command) {
+        write(COMMAND, now, command.getSenderId(), command.toString());
+    }
+
+    /**
+     * @return The number of events recorded so far
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return The error that stopped the recording, or null if it is still going
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Ends the capture with the fingerprint of the model it was recording, so that a replay can
+     * check that it arrives at the same state, and closes the file.
+     *
+     * @param model The model the traffic was recorded from
+     */
+    public void close(ServerModel model) throws IOException {
+        if (out != null && failure == null) {
+            out.writeByte(END);
+            out.writeLong(TrafficReplay.fingerprint(model));
+        }
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            DataOutputStream closing = out;
+            out = null;
+            closing.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write(int kind, long now, int userId, String wire) {
+        if (out == null || failure != null) {
+            return;
+        }
+        try {
+            out.writeByte(kind);
+            writeVarLong(lastTime == Long.MIN_VALUE ? 0 : now - lastTime);
+            writeVarLong(userId);
+            if (wire != null) {
+                out.writeUTF(wire);
+            }
+            lastTime = now;
+            events++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
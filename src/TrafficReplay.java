@@ -0,0 +1,209 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * The traffic replay class feeds a capture written by TrafficRecorder into
+ * a fresh ServerModel and reports throughput, per-command latency and
+ * whether the model ends up in the recorded state. Commands are rebuilt
+ * from their wire form, and the model's clock is set to the recorded time
+ * of each event, so rate limiting makes the same decisions it made live
+ * and two builds can be compared on exactly the same workload.
+ *
+ * Replays run either at the original pace, waiting out the recorded gaps
+ * between events, or as fast as the model allows:
+ *
+ *     java TrafficReplay capture.bin [original|max] [offheap]
+ */
+
+public class TrafficReplay {
+    private final ServerModel model;
+    private long replayTime;
+
+    public TrafficReplay(ServerModel model) {
+        this.model = model;
+        model.setClock(() -> replayTime);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java TrafficReplay capture.bin [original|max] [offheap]");
+            System.exit(2);
+        }
+        boolean originalSpeed = args.length > 1 && args[1].equals("original");
+        boolean offHeap = args.length > 2 && args[2].equals("offheap");
+        ReplayReport report = new TrafficReplay(new ServerModel(offHeap))
+                .replay(new File(args[0]), originalSpeed);
+        System.out.println(report);
+        if (report.hasExpectedState() && !report.stateMatches()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replays a capture into the model.
+     *
+     * @param capture A file written by {@link TrafficRecorder}
+     * @param originalSpeed true to keep the recorded gaps between events, false to replay as fast
+     *                      as possible
+     * @return The report of the run
+     */
+    public ReplayReport replay(File capture, boolean originalSpeed) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(capture), 1 << 16)))) {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException("not a traffic capture: " + capture);
+            }
+            if (in.readInt() != TrafficRecorder.VERSION) {
+                throw new IOException("unsupported capture version: " + capture);
+            }
+            long events = 0;
+            long[] latencies = new long[1024];
+            int commands = 0;
+            Long expectedFingerprint = null;
+            long recordedElapsed = 0;
+            long start = System.nanoTime();
+            int kind;
+            while ((kind = in.read()) >= 0) {
+                if (kind == TrafficRecorder.END) {
+                    expectedFingerprint = in.readLong();
+                    break;
+                }
+                recordedElapsed += readVarLong(in);
+                int userId = (int) readVarLong(in);
+                replayTime = recordedElapsed;
+                if (originalSpeed) {
+                    long due = start + recordedElapsed;
+                    for (long wait; (wait = due - System.nanoTime()) > 0;) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                events++;
+                switch (kind) {
+                    case TrafficRecorder.REGISTER:
+                        model.registerUser(userId);
+                        break;
+                    case TrafficRecorder.DEREGISTER:
+                        model.deregisterUser(userId);
+                        break;
+                    case TrafficRecorder.COMMAND:
+                        Command command = parse(userId, in.readUTF());
+                        long before = System.nanoTime();
+                        model.execute(command);
+                        if (commands == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, commands * 2);
+                        }
+                        latencies[commands++] = System.nanoTime() - before;
+                        break;
+                    default:
+                        throw new IOException("corrupt capture: event kind " + kind);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long[] sorted = Arrays.copyOf(latencies, commands);
+            Arrays.sort(sorted);
+            return new ReplayReport(events, commands, elapsed, sorted, fingerprint(model),
+                                    expectedFingerprint);
+        }
+    }
+
+    /**
+     * Rebuilds a command from its wire form, as produced by {@link Command#toString()}.
+     *
+     * @param senderId The user ID the command was sent by
+     * @param wire The wire form of the command
+     * @return The command
+     * @throws IllegalArgumentException if the wire form is not a known command
+     */
+    public static Command parse(int senderId, String wire) {
+        int verbStart = wire.indexOf(' ');
+        int argsStart = wire.indexOf(' ', verbStart + 1);
+        if (!wire.startsWith(":") || verbStart < 0 || argsStart < 0) {
+            throw new IllegalArgumentException("malformed command: " + wire);
+        }
+        String sender = wire.substring(1, verbStart);
+        String verb = wire.substring(verbStart + 1, argsStart);
+        String args = wire.substring(argsStart + 1);
+        String[] words = args.split(" ", -1);
+        switch (verb) {
+            case "NICK":
+                return new NicknameCommand(senderId, sender, args);
+            case "CREATE":
+                return new CreateCommand(senderId, sender, words[0], words[1].equals("1"));
+            case "JOIN":
+                return new JoinCommand(senderId, sender, args);
+            case "MESG":
+                int text = args.indexOf(" :");
+                return new MessageCommand(senderId, sender, args.substring(0, text),
+                                          args.substring(text + 2));
+            case "DMSG":
+                int said = args.indexOf(" :");
+                return new DirectMessageCommand(senderId, sender, args.substring(0, said),
+                                                args.substring(said + 2));
+            case "SYNC":
+                return new SyncCommand(senderId, sender, words[0], Long.parseLong(words[1]));
+            case "LIST":
+                return new ListCommand(senderId, sender, words[0],
+                                       words.length > 1 ? words[1] : null);
+            case "NAMES":
+                return new NamesCommand(senderId, sender, words[0], Integer.parseInt(words[1]));
+            case "LEAVE":
+                return new LeaveCommand(senderId, sender, args);
+            case "INVITE":
+                return new InviteCommand(senderId, sender, words[0], words[1]);
+            case "KICK":
+                return new KickCommand(senderId, sender, words[0], words[1]);
+            case "MINVITE":
+                return new BulkInviteCommand(senderId, sender, words[0], 
+                                             Arrays.asList(words[1].split(",")));
+            case "MKICK":
+                return new BulkKickCommand(senderId, sender, words[0], 
+                                           Arrays.asList(words[1].split(",")));
+            case "MMESG":
+                int body = args.indexOf(" :");
+                return new MultiMessageCommand(senderId, sender, 
+                        Arrays.asList(args.substring(0, body).split(",")), 
+                        args.substring(body + 2));
+            case "MJOIN":
+                return new BulkJoinCommand(senderId, sender, Arrays.asList(args.split(",")));
+            default:
+                throw new IllegalArgumentException("unknown command: " + wire);
+        }
+    }
+
+    /**
+     * Hashes the visible state of a model: every user's nickname, and every channel's owner,
+     * privacy and members. Two models with the same fingerprint are, for all practical
+     * purposes, in the same state.
+     *
+     * @param model The model to fingerprint
+     * @return The fingerprint
+     */
+    public static long fingerprint(ServerModel model) {
+        long hash = 1125899906842597L;
+        for (String nickname : new TreeSet<String>(model.getRegisteredUsers())) {
+            hash = 31 * hash + nickname.hashCode();
+        }
+        for (String channel : model.getChannels()) {
+            hash = 31 * hash + channel.hashCode();
+            hash = 31 * hash + model.getOwner(channel).hashCode();
+            hash = 31 * hash + (model.getChannelFromName(channel).isPrivate() ? 1 : 0);
+            for (String member : model.getUsers(channel)) {
+                hash = 31 * hash + member.hashCode();
+            }
+        }
+        return hash;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.*;
+
+/*
+ * The default MemberSet for ordinary channels: a TreeSet of boxed user IDs,
+ * which is cheap and simple while a channel only has a handful of members.
+ *
+ * Reads far outnumber membership changes, so the set also keeps a sorted
+ * int[] copy of its members, rebuilt on the first read after a change.
+ * contains and copyTo use that copy, which keeps them free of boxing and
+ * iterator allocation on the message path.
+ */
+
+public class TreeMemberSet implements MemberSet {
+    private final TreeSet<Integer> users;
+    private int[] sorted;
+    private boolean sortedValid;
+
+    public TreeMemberSet() {
+        this.users = new TreeSet<Integer>();
+        this.sorted = new int[4];
+        this.sortedValid = true;
+    }
+
+    public boolean add(int userId) {
+        boolean added = users.add(userId);
+        sortedValid &= !added;
+        return added;
+    }
+
+    public boolean remove(int userId) {
+        boolean removed = users.remove(userId);
+        sortedValid &= !removed;
+        return removed;
+    }
+
+    public boolean contains(int userId) {
+        return Arrays.binarySearch(sorted(), 0, users.size(), userId) >= 0;
+    }
+
+    @Override
+    public int copyTo(int[] into) {
+        System.arraycopy(sorted(), 0, into, 0, users.size());
+        return users.size();
+    }
+
+    private int[] sorted() {
+        if (!sortedValid) {
+            if (sorted.length < users.size()) {
+                sorted = new int[Math.max(users.size(), sorted.length * 2)];
+            }
+            int next = 0;
+            for (Integer userId : users) {
+                sorted[next++] = userId;
+            }
+            sortedValid = true;
+        }
+        return sorted;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public PrimitiveIterator.OfInt iteratorFrom(int fromUserId) {
+        final Iterator<Integer> tail = users.tailSet(fromUserId, true).iterator();
+        return new PrimitiveIterator.OfInt() {
+            public boolean hasNext() {
+                return tail.hasNext();
+            }
+
+            public int nextInt() {
+                return tail.next();
+            }
+        };
+    }
+}
@@ -2,15 +2,118 @@ import java.util.*;
 
 /*
  * The user class is responsible for keeping track 
- * its messages.
+ * its messages, along with everything else the model knows about a connected
+ * user: the handle of its nickname in the NameTable, the channels it is a
+ * member of, its rate limiting buckets and when it connected. Users are
+ * stored in a UserTable slot indexed by user ID.
  */
 
 public class User {
     private LinkedList<String> messages;
+    private int nickname;
+    private final List<Channel> channels;
+    private final TokenBucket messageBucket;
+    private final TokenBucket createBucket;
+    private final long connectedAt;
+    private boolean identified;
+    private List<String> offlineMessages;
+    private FrameCompressor compressor;
+    private boolean pinged;
     
     public User() {
+        this(-1);
+    }
+    
+    public User(int nickname) {
         messages = new LinkedList<String>();
+        this.nickname = nickname;
+        this.channels = new ArrayList<Channel>(4);
+        this.messageBucket = new TokenBucket(ServerModel.USER_MESSAGE_BURST, 
+                                             ServerModel.USER_MESSAGES_PER_SECOND);
+        this.createBucket = new TokenBucket(ServerModel.USER_CREATE_BURST, 
+                                            ServerModel.USER_CREATES_PER_SECOND);
+        this.connectedAt = System.nanoTime();
+        this.offlineMessages = Collections.emptyList();
+    }
+    
+    public int getNickname() {
+        return nickname;
+    }
+    
+    public void setNickname(int nickname) {
+        this.nickname = nickname;
+    }
+    
+    /**
+     * @return The channels this user is a member of; owned by the model, do not modify
+     */
+    public List<Channel> getChannels() {
+        return channels;
+    }
+    
+    public void joined(Channel channel) {
+        channels.add(channel);
+    }
+    
+    public void left(Channel channel) {
+        channels.remove(channel);
+    }
+    
+    public TokenBucket getMessageBucket() {
+        return messageBucket;
+    }
+    
+    public TokenBucket getCreateBucket() {
+        return createBucket;
     }
     
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+    
+    /**
+     * @return true if the user chose its nickname with NICK, rather than keeping a generated one
+     */
+    public boolean isIdentified() {
+        return identified;
+    }
+    
+    public void setIdentified(boolean identified) {
+        this.identified = identified;
+    }
+    
+    /**
+     * Hands over the messages captured while this user's nickname was offline, once.
+     */
+    public List<String> takeOfflineMessages() {
+        List<String> taken = offlineMessages;
+        offlineMessages = Collections.emptyList();
+        return taken;
+    }
+    
+    public void setOfflineMessages(List<String> offlineMessages) {
+        this.offlineMessages = offlineMessages;
+    }
+    
+    /**
+     * @return The compression context of this user's connection, or null if it is not compressed
+     */
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+    
+    public void setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+    
+    /**
+     * @return true if the user has been sent a keepalive ping and has not been heard from since
+     */
+    public boolean isPinged() {
+        return pinged;
+    }
     
-}
\ No newline at end of file
+    public void setPinged(boolean pinged) {
+        this.pinged = pinged;
+    }
+}
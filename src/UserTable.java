@@ -0,0 +1,77 @@
+import java.util.*;
+
+/*
+ * The user table class holds the registered users, indexed directly by user
+ * ID. The backend hands out dense, small, non-negative IDs, so a plain array
+ * of User slots gives constant-time lookups with no boxing, no tree nodes and
+ * no pointer chasing beyond the User itself. The array grows to fit the
+ * largest ID seen.
+ */
+
+public class UserTable {
+    private User[] slots;
+    private int size;
+
+    public UserTable() {
+        this.slots = new User[64];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param userId The user ID to look up
+     * @return The user registered with that ID, or null if there is none
+     */
+    public User get(int userId) {
+        if (userId < 0 || userId >= slots.length) {
+            return null;
+        }
+        return slots[userId];
+    }
+
+    public boolean contains(int userId) {
+        return get(userId) != null;
+    }
+
+    public void put(int userId, User user) {
+        if (userId < 0) {
+            throw new IllegalArgumentException("user IDs are non-negative: " + userId);
+        }
+        if (userId >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, userId + 1));
+        }
+        if (slots[userId] == null) {
+            size++;
+        }
+        slots[userId] = user;
+    }
+
+    /**
+     * @param userId The user ID to remove
+     * @return The user that was registered with that ID, or null if there was none
+     */
+    public User remove(int userId) {
+        User user = get(userId);
+        if (user != null) {
+            slots[userId] = null;
+            size--;
+        }
+        return user;
+    }
+
+    /**
+     * @return The registered user IDs in ascending order
+     */
+    public int[] userIds() {
+        int[] userIds = new int[size];
+        int next = 0;
+        for (int userId = 0; next < size; userId++) {
+            if (slots[userId] != null) {
+                userIds[next++] = userId;
+            }
+        }
+        return userIds;
+    }
+}
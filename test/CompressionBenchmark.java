@@ -0,0 +1,99 @@
+import java.util.*;
+import java.util.zip.Deflater;
+
+/*
+ * Measures what per-connection DEFLATE costs and saves on typical server
+ * traffic. It builds a model with a few thousand users spread over many
+ * channels, then encodes one connection's worth of frames: paged NAMES of a
+ * large channel, LIST pages, and short MESG frames. Each FrameCompressor
+ * setting is run over the same frames and reports the bytes on the wire and
+ * the CPU time per frame.
+ *
+ *     java CompressionBenchmark [users] [rounds]
+ *
+ * This is not a JUnit test.
+ */
+
+public class CompressionBenchmark {
+
+    public static void main(String[] args) {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        List<String> frames = traffic(userCount);
+        long rawBytes = 0;
+        for (String frame : frames) {
+            rawBytes += frame.length();
+        }
+        System.out.printf("%d frames, %d bytes uncompressed%n", frames.size(), rawBytes);
+
+        int[][] settings = {
+            {Deflater.BEST_SPEED, 0},
+            {Deflater.BEST_SPEED, FrameCompressor.MIN_COMPRESSED_BYTES},
+            {Deflater.DEFAULT_COMPRESSION, 0},
+            {Deflater.DEFAULT_COMPRESSION, FrameCompressor.MIN_COMPRESSED_BYTES},
+            {Deflater.BEST_COMPRESSION, FrameCompressor.MIN_COMPRESSED_BYTES},
+        };
+        for (int[] setting : settings) {
+            long bytesOut = 0;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                FrameCompressor compressor = new FrameCompressor(setting[0], setting[1]);
+                long start = System.nanoTime();
+                for (String frame : frames) {
+                    compressor.compress(frame);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+                bytesOut = compressor.getBytesOut();
+                compressor.close();
+            }
+            System.out.printf("level=%2d threshold=%3d  bytes=%9d (%5.1f%%)  %6.0f ns/frame%n",
+                              setting[0], setting[1], bytesOut, 100.0 * bytesOut / rawBytes,
+                              (double) best / frames.size());
+        }
+    }
+
+    /*
+     * One connection's frames: the NAMES of a large channel page by page, every LIST page, and
+     * a stream of chat messages between them.
+     */
+    private static List<String> traffic(int userCount) {
+        ServerModel model = new ServerModel();
+        Random random = new Random(120);
+        for (int i = 0; i < userCount; i++) {
+            model.registerUser(i);
+        }
+        int channelCount = userCount / 10;
+        for (int c = 0; c < channelCount; c++) {
+            new CreateCommand(c, "User" + c, "channel" + c, false).updateServerModel(model);
+        }
+        for (int i = 0; i < userCount; i++) {
+            new JoinCommand(i, "User" + i, "channel0").updateServerModel(model);
+            new JoinCommand(i, "User" + i, "channel" + random.nextInt(channelCount))
+                    .updateServerModel(model);
+        }
+
+        List<String> frames = new ArrayList<>();
+        int cursor = 0;
+        while (cursor != -1) {
+            NamesPage page = model.getUsersPage("channel0", cursor, 100);
+            frames.add(":User0 NAMES channel0 " + String.join(" ", page.getNicknames()));
+            cursor = page.getNextCursor();
+            addMessages(frames, random, userCount, 5);
+        }
+        String listCursor = null;
+        do {
+            ChannelPage page = model.listChannels("", listCursor, 100);
+            frames.add(":User0 LIST " + String.join(" ", page.getChannelNames()));
+            listCursor = page.getNextCursor();
+            addMessages(frames, random, userCount, 5);
+        } while (listCursor != null);
+        return frames;
+    }
+
+    private static void addMessages(List<String> frames, Random random, int userCount, int n) {
+        for (int i = 0; i < n; i++) {
+            frames.add(String.format(":User%d MESG channel0 :message number %d",
+                                     random.nextInt(userCount), random.nextInt(100000)));
+        }
+    }
+}
@@ -0,0 +1,528 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/*
+ * Differential fuzzing of ServerModel against ReferenceModel. Each case is a
+ * long random sequence of steps over every Command subclass plus register
+ * and deregister, run against both models; every Broadcast, every bulk
+ * outcome, and after each step every query (live and snapshot) must agree.
+ *
+ * Steps are abstract: they name the acting user by ID and are turned into
+ * commands only when they run, with the sender's nickname at that moment,
+ * so any subsequence of a case is still a meaningful case. When a case
+ * fails it is shrunk by removing steps for as long as it keeps failing, and
+ * the failure is reported with its seed and the minimal sequence.
+ *
+ * LIST and SYNC are also checked against the reference's naive channel
+ * listing and membership history: LIST pages through the whole listing from
+ * a random cursor, and SYNC asks for the changes since a membership version
+ * one of the channels actually had during the case, or one next to it.
+ *
+ * The model runs on a clock that moves ten seconds per step, so no rate
+ * limit ever applies. Longer campaigns can be run from the command line:
+ *
+ *     java DifferentialFuzzTest <first seed> <cases> <steps> [offheap] [crowd]
+ */
+
+public class DifferentialFuzzTest {
+    static final int ACTORS = 8;
+    static final int CROWD_FIRST_ID = 100;
+    static final int CROWD_SIZE = Channel.LARGE_CHANNEL_THRESHOLD + 76;
+
+    private static final String[] NICKNAMES =
+        { "Duke", "Ada", "Linus", "User0", "User1", "User2", "User3", "not valid" };
+    private static final String[] CHANNELS = { "java", "scala", "go", "rust", "no!" };
+    private static final String[] PREFIXES = { "", "j", "s", "no!" };
+    private static final String[] CURSORS = { "-", "-", "go", "java", "k", "rust", "zzz" };
+    private static final String[] VERBS = {
+        "REGISTER", "REGISTER", "REGISTER", "DEREGISTER", "NICK", "NICK", "CREATE", "CREATE",
+        "JOIN", "JOIN", "JOIN", "MESG", "MESG", "MESG", "DMSG", "SYNC", "NAMES", "LIST", "LEAVE",
+        "INVITE", "INVITE", "KICK", "KICK", "MINVITE", "MKICK", "MJOIN", "MMESG" };
+
+    /*
+     * One step of a case: a verb, the ID of the user performing it, and its arguments.
+     */
+    static final class Step {
+        final String verb;
+        final int actor;
+        final String[] args;
+
+        Step(String verb, int actor, String... args) {
+            this.verb = verb;
+            this.actor = actor;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            return actor + " " + verb + (args.length == 0 ? "" : " " + String.join(" ", args));
+        }
+    }
+
+    @Test
+    public void testHeapModelMatchesReference() {
+        for (long seed = 1; seed <= 30; seed++) {
+            fuzz(seed, 400, false, false, false);
+        }
+    }
+
+    @Test
+    public void testOffHeapBuilderPathMatchesReference() {
+        for (long seed = 1; seed <= 30; seed++) {
+            fuzz(seed, 400, true, true, false);
+        }
+    }
+
+    @Test
+    public void testLargeChannelsMatchReference() {
+        for (long seed = 1; seed <= 3; seed++) {
+            fuzz(seed, 300, false, true, true);
+            fuzz(seed, 300, true, false, true);
+        }
+    }
+
+    @Test
+    public void testShrinkingFindsMinimalCase() {
+        List<Step> steps = generate(new Random(7), 500, false);
+        Step first = steps.get(123);
+        Step second = steps.get(321);
+        List<Step> shrunk = shrink(steps, candidate ->
+                candidate.contains(first) && candidate.contains(second));
+        assertEquals("minimal", Arrays.asList(first, second), shrunk);
+    }
+
+    public static void main(String[] args) {
+        long firstSeed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int cases = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int length = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        List<String> flags = Arrays.asList(args);
+        boolean offHeap = flags.contains("offheap");
+        for (long seed = firstSeed; seed < firstSeed + cases; seed++) {
+            fuzz(seed, length, offHeap, offHeap, flags.contains("crowd"));
+        }
+        System.out.printf("%d cases of %d steps passed%n", cases, length);
+    }
+
+    //==========================================================================
+    // Generating and shrinking cases
+    //==========================================================================
+
+    static void fuzz(long seed, int length, boolean offHeap, boolean builderPath,
+                     boolean crowd) {
+        List<Step> steps = generate(new Random(seed), length, crowd);
+        String failure = failure(steps, offHeap, builderPath);
+        if (failure == null) {
+            return;
+        }
+        List<Step> minimal = shrink(steps,
+                candidate -> failure(candidate, offHeap, builderPath) != null);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("seed %d (offHeap=%b, builderPath=%b): %d steps shrunk to %d%n",
+                                    seed, offHeap, builderPath, steps.size(), minimal.size()));
+        for (Step step : minimal) {
+            report.append("    ").append(step).append('\n');
+        }
+        report.append(failure(minimal, offHeap, builderPath));
+        fail(report.toString());
+    }
+
+    static List<Step> generate(Random random, int length, boolean crowd) {
+        List<Step> steps = new ArrayList<Step>(length);
+        for (int i = 0; i < length; i++) {
+            int actor = random.nextInt(ACTORS);
+            if (crowd && random.nextInt(100) == 0) {
+                steps.add(new Step("CROWD", actor, pick(random, CHANNELS),
+                                   random.nextBoolean() ? "join" : "leave"));
+                continue;
+            }
+            String verb = pick(random, VERBS);
+            switch (verb) {
+                case "REGISTER":
+                case "DEREGISTER":
+                    steps.add(new Step(verb, actor));
+                    break;
+                case "NICK":
+                case "DMSG":
+                    steps.add(new Step(verb, actor, pick(random, NICKNAMES)));
+                    break;
+                case "CREATE":
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS),
+                                       random.nextInt(3) == 0 ? "1" : "0"));
+                    break;
+                case "SYNC":
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS),
+                                       String.valueOf(random.nextInt(1000)),
+                                       String.valueOf(random.nextInt(3) - 1)));
+                    break;
+                case "NAMES":
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS),
+                                       String.valueOf(random.nextInt(ACTORS) - 1)));
+                    break;
+                case "LIST":
+                    steps.add(new Step(verb, actor, pick(random, PREFIXES),
+                                       pick(random, CURSORS),
+                                       String.valueOf(random.nextInt(5) - 1)));
+                    break;
+                case "INVITE":
+                case "KICK":
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS),
+                                       pick(random, NICKNAMES)));
+                    break;
+                case "MINVITE":
+                case "MKICK":
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS),
+                                       String.join(",", pickSome(random, NICKNAMES))));
+                    break;
+                case "MJOIN":
+                case "MMESG":
+                    steps.add(new Step(verb, actor,
+                                       String.join(",", pickSome(random, CHANNELS))));
+                    break;
+                default:
+                    steps.add(new Step(verb, actor, pick(random, CHANNELS)));
+            }
+        }
+        return steps;
+    }
+
+    private static String pick(Random random, String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private static List<String> pickSome(Random random, String[] choices) {
+        List<String> picked = new ArrayList<String>();
+        for (int n = 1 + random.nextInt(3); n > 0; n--) {
+            picked.add(pick(random, choices));
+        }
+        return picked;
+    }
+
+    /**
+     * Shrinks a failing case by removing chunks of steps, halving the chunk size whenever no
+     * chunk of the current size can be removed, until no single step can be removed either.
+     *
+     * @param steps A case for which {@code fails} holds
+     * @param fails Tells whether a candidate still fails
+     * @return A subsequence of the case that still fails and is minimal with respect to
+     *         removing any one step
+     */
+    static List<Step> shrink(List<Step> steps, Predicate<List<Step>> fails) {
+        List<Step> current = steps;
+        int chunk = Math.max(1, current.size() / 2);
+        while (chunk >= 1) {
+            boolean removed = false;
+            for (int start = 0; start < current.size(); ) {
+                List<Step> candidate = new ArrayList<Step>(current.subList(0, start));
+                candidate.addAll(current.subList(Math.min(current.size(), start + chunk),
+                                                 current.size()));
+                if (fails.test(candidate)) {
+                    current = candidate;
+                    removed = true;
+                } else {
+                    start += chunk;
+                }
+            }
+            if (!removed || chunk > 1) {
+                chunk /= 2;
+            }
+        }
+        return current;
+    }
+
+    //==========================================================================
+    // Running a case against both models
+    //==========================================================================
+
+    /*
+     * Runs a case and returns a description of the first disagreement, or null if there is none.
+     */
+    static String failure(List<Step> steps, boolean offHeap, boolean builderPath) {
+        ServerModel model = new ServerModel(offHeap);
+        long[] clock = { 0 };
+        model.setClock(() -> clock[0]);
+        ReferenceModel reference = new ReferenceModel(offHeap);
+        Runner runner = new Runner(model, reference, builderPath);
+        for (int i = 0; i < steps.size(); i++) {
+            clock[0] += 10_000_000_000L;
+            try {
+                runner.run(steps.get(i));
+                runner.compareQueries();
+            } catch (AssertionError | RuntimeException e) {
+                return String.format("step %d (%s): %s", i, steps.get(i), e);
+            }
+        }
+        return null;
+    }
+
+    private static final class Runner {
+        private final ServerModel model;
+        private final ReferenceModel reference;
+        private final boolean builderPath;
+        private final BroadcastBuilder out;
+        private final List<Long> seenVersions;
+
+        Runner(ServerModel model, ReferenceModel reference, boolean builderPath) {
+            this.model = model;
+            this.reference = reference;
+            this.builderPath = builderPath;
+            this.out = new BroadcastBuilder();
+            this.seenVersions = new ArrayList<Long>(Collections.singleton(0L));
+        }
+
+        void run(Step step) {
+            int actor = step.actor;
+            if (step.verb.equals("CROWD")) {
+                crowd(step.args[0], step.args[1].equals("join"));
+                return;
+            }
+            if (step.verb.equals("REGISTER")) {
+                if (!reference.isRegistered(actor)) {
+                    assertEquals("register", reference.registerUser(actor),
+                                 model.registerUser(actor));
+                }
+                return;
+            }
+            if (!reference.isRegistered(actor)) {
+                return;
+            }
+            if (step.verb.equals("DEREGISTER")) {
+                assertEquals("deregister", reference.deregisterUser(actor),
+                             model.deregisterUser(actor));
+                return;
+            }
+            String sender = reference.getNickname(actor);
+            String[] args = step.args;
+            switch (step.verb) {
+                case "NICK": {
+                    Command command = new NicknameCommand(actor, sender, args[0]);
+                    compare(reference.nick(actor, args[0], command), command);
+                    break;
+                }
+                case "CREATE": {
+                    boolean inviteOnly = args[1].equals("1");
+                    Command command = new CreateCommand(actor, sender, args[0], inviteOnly);
+                    compare(reference.create(actor, args[0], inviteOnly, command), command);
+                    break;
+                }
+                case "JOIN": {
+                    Command command = new JoinCommand(actor, sender, args[0]);
+                    compare(reference.join(actor, args[0], command), command);
+                    break;
+                }
+                case "MESG": {
+                    Command command = new MessageCommand(actor, sender, args[0], "hello");
+                    compare(reference.message(actor, args[0], command), command);
+                    break;
+                }
+                case "DMSG": {
+                    Command command = new DirectMessageCommand(actor, sender, args[0], "psst");
+                    compare(reference.directMessage(actor, args[0], command), command);
+                    break;
+                }
+                case "SYNC": {
+                    long version = seenVersions.get(Integer.parseInt(args[1]) % seenVersions.size())
+                                   + Integer.parseInt(args[2]);
+                    Command command = new SyncCommand(actor, sender, args[0], version);
+                    compare(reference.sync(actor, args[0], command), command);
+                    compareDelta(reference.getMembershipDelta(args[0], version),
+                                 model.getMembershipDelta(args[0], version), command);
+                    break;
+                }
+                case "NAMES": {
+                    int cursor = Integer.parseInt(args[1]);
+                    Command command = new NamesCommand(actor, sender, args[0], cursor);
+                    compare(reference.names(actor, args[0], command), command);
+                    NamesPage page = model.getUsersPage(args[0], cursor, 2);
+                    List<String> actual = new ArrayList<String>(page.getNicknames());
+                    actual.add(String.valueOf(page.getNextCursor()));
+                    assertEquals("page of " + args[0], 
+                                 reference.getUsersPage(args[0], Math.max(0, cursor), 2), actual);
+                    break;
+                }
+                case "LIST": {
+                    String cursor = args[1].equals("-") ? null : args[1];
+                    Command command = new ListCommand(actor, sender, args[0], cursor);
+                    compare(reference.list(actor, args[0], command), command);
+                    comparePages(args[0], cursor, Integer.parseInt(args[2]));
+                    break;
+                }
+                case "LEAVE": {
+                    Command command = new LeaveCommand(actor, sender, args[0]);
+                    compare(reference.leave(actor, args[0], command), command);
+                    break;
+                }
+                case "INVITE": {
+                    Command command = new InviteCommand(actor, sender, args[0], args[1]);
+                    compare(reference.invite(actor, args[0], args[1], command), command);
+                    break;
+                }
+                case "KICK": {
+                    Command command = new KickCommand(actor, sender, args[0], args[1]);
+                    compare(reference.kick(actor, args[0], args[1], command), command);
+                    break;
+                }
+                case "MINVITE": {
+                    List<String> targets = Arrays.asList(args[1].split(","));
+                    BulkCommand command = new BulkInviteCommand(actor, sender, args[0], targets);
+                    Map<String, ServerError> outcomes = new LinkedHashMap<String, ServerError>();
+                    compareBulk(reference.inviteAll(actor, args[0], targets, command, outcomes),
+                                command, outcomes);
+                    break;
+                }
+                case "MKICK": {
+                    List<String> targets = Arrays.asList(args[1].split(","));
+                    BulkCommand command = new BulkKickCommand(actor, sender, args[0], targets);
+                    Map<String, ServerError> outcomes = new LinkedHashMap<String, ServerError>();
+                    compareBulk(reference.kickAll(actor, args[0], targets, command, outcomes),
+                                command, outcomes);
+                    break;
+                }
+                case "MJOIN": {
+                    List<String> channels = Arrays.asList(args[0].split(","));
+                    BulkCommand command = new BulkJoinCommand(actor, sender, channels);
+                    Map<String, ServerError> outcomes = new LinkedHashMap<String, ServerError>();
+                    Map<String, Broadcast> broadcasts = new LinkedHashMap<String, Broadcast>();
+                    compareBulk(reference.joinAll(actor, channels, command, outcomes, broadcasts),
+                                command, outcomes);
+                    assertEquals("broadcasts of " + command, 
+                                 new ArrayList<>(broadcasts.entrySet()),
+                                 new ArrayList<>(command.getResult().getBroadcasts().entrySet()));
+                    break;
+                }
+                case "MMESG": {
+                    List<String> channels = Arrays.asList(args[0].split(","));
+                    BulkCommand command = new MultiMessageCommand(actor, sender, channels, "all");
+                    Map<String, ServerError> outcomes = new LinkedHashMap<String, ServerError>();
+                    compareBulk(reference.messageAll(actor, channels, command, outcomes),
+                                command, outcomes);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown verb " + step.verb);
+            }
+        }
+
+        /*
+         * Registers the crowd and joins all of it to a channel, or deregisters it, pushing the
+         * channel across the large-channel threshold in either direction.
+         */
+        private void crowd(String channelName, boolean join) {
+            for (int id = CROWD_FIRST_ID; id < CROWD_FIRST_ID + CROWD_SIZE; id++) {
+                if (!join) {
+                    if (reference.isRegistered(id)) {
+                        assertEquals("crowd deregister", reference.deregisterUser(id),
+                                     model.deregisterUser(id));
+                    }
+                } else if (!reference.isRegistered(id)) {
+                    assertEquals("crowd register", reference.registerUser(id),
+                                 model.registerUser(id));
+                } else {
+                    Command command = new JoinCommand(id, reference.getNickname(id),
+                                                      channelName);
+                    compare(reference.join(id, channelName, command), command);
+                }
+            }
+        }
+
+        private void compare(Broadcast expected, Command command) {
+            Broadcast actual;
+            if (builderPath) {
+                out.reset();
+                model.execute(command, out);
+                actual = out.toBroadcast(model);
+            } else {
+                actual = model.execute(command);
+            }
+            assertEquals(command.toString(), expected, actual);
+        }
+
+        /*
+         * Compares the page of the listing at the cursor and every page after it. A page size
+         * below 1 must be rejected by both models.
+         */
+        private void comparePages(String prefix, String cursor, int pageSize) {
+            if (pageSize < 1) {
+                try {
+                    model.listChannels(prefix, cursor, pageSize);
+                    fail("page size " + pageSize + " accepted");
+                } catch (IllegalArgumentException expected) {
+                }
+                return;
+            }
+            do {
+                List<String> expected = reference.listChannels(prefix, cursor, pageSize);
+                ChannelPage page = model.listChannels(prefix, cursor, pageSize);
+                List<String> actual = new ArrayList<String>(page.getChannelNames());
+                actual.add(page.getNextCursor());
+                assertEquals("channels after " + cursor + " with prefix " + prefix, expected,
+                             actual);
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        }
+
+        private void compareDelta(MembershipDelta expected, MembershipDelta actual,
+                                  Command command) {
+            if (expected == null) {
+                assertNull("delta of " + command, actual);
+                return;
+            }
+            assertNotNull("delta of " + command, actual);
+            assertEquals("version after " + command, expected.getVersion(), actual.getVersion());
+            assertEquals("snapshot for " + command, expected.isSnapshot(), actual.isSnapshot());
+            assertEquals("joined for " + command, expected.getJoined(), 
+                         new TreeSet<String>(actual.getJoined()));
+            assertEquals("left for " + command, expected.getLeft(), 
+                         new TreeSet<String>(actual.getLeft()));
+        }
+
+        private void compareBulk(Broadcast expected, BulkCommand command,
+                                 Map<String, ServerError> outcomes) {
+            compare(expected, command);
+            assertEquals("outcomes of " + command, new ArrayList<>(outcomes.entrySet()),
+                         new ArrayList<>(command.getResult().getOutcomes().entrySet()));
+        }
+
+        void compareQueries() {
+            Collection<String> registered = model.getRegisteredUsers();
+            assertEquals("registered users", reference.getRegisteredUsers(),
+                         new TreeSet<String>(registered));
+            assertEquals("no duplicate users", reference.getUserIds().size(), registered.size());
+            for (int userId : reference.getUserIds()) {
+                String nickname = reference.getNickname(userId);
+                assertEquals("nickname of " + userId, nickname, model.getNickname(userId));
+                assertEquals("user ID of " + nickname, userId, model.getUserId(nickname));
+            }
+            assertEquals("channels", reference.getChannels(), model.getChannels());
+
+            ModelSnapshot snapshot = model.snapshot();
+            assertEquals("snapshot users", reference.getRegisteredUsers(),
+                         new TreeSet<String>(snapshot.getRegisteredUsers()));
+            assertEquals("snapshot channels", reference.getChannels(),
+                         new TreeSet<String>(snapshot.getChannels()));
+            for (String channelName : reference.getChannels()) {
+                Set<String> members = reference.getUsers(channelName);
+                assertEquals("members of " + channelName, members,
+                             new TreeSet<String>(model.getUsers(channelName)));
+                assertEquals("snapshot members of " + channelName, members,
+                             new TreeSet<String>(snapshot.getUsers(channelName)));
+                assertEquals("owner of " + channelName, reference.getOwner(channelName),
+                             model.getOwner(channelName));
+                assertEquals("snapshot owner of " + channelName,
+                             reference.getOwner(channelName), snapshot.getOwner(channelName));
+                int[] ids = model.getUserIds(channelName).clone();
+                Arrays.sort(ids);
+                assertArrayEquals("member IDs of " + channelName,
+                                  reference.getMemberIds(channelName), ids);
+                long version = reference.getMembershipVersion(channelName);
+                assertEquals("membership version of " + channelName, version,
+                             model.getMembershipVersion(channelName));
+                if (!seenVersions.contains(version)) {
+                    seenVersions.add(version);
+                }
+            }
+        }
+    }
+}
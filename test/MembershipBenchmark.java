@@ -0,0 +1,76 @@
+import java.lang.management.*;
+import java.util.*;
+
+/*
+ * Compares garbage collection cost of on-heap and off-heap channel
+ * membership. It fills a set of channels with members, then allocates
+ * short-lived garbage (as message traffic would) and forces a few full
+ * collections, and reports how much time the collector spent.
+ *
+ * Run each mode in its own JVM, with the same heap settings:
+ *
+ *     java -Xmx2g MembershipBenchmark heap 20000 100
+ *     java -Xmx2g MembershipBenchmark offheap 20000 100
+ *
+ * The arguments are the mode, the number of channels and the members per
+ * channel. This is not a JUnit test.
+ */
+
+public class MembershipBenchmark {
+
+    public static void main(String[] args) {
+        boolean offHeap = args.length > 0 && args[0].equals("offheap");
+        int channels = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int membersPerChannel = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        OffHeapArena arena = offHeap ? new OffHeapArena() : null;
+        List<Channel> retained = new ArrayList<>(channels);
+        Random random = new Random(120);
+        for (int c = 0; c < channels; c++) {
+            Channel channel = new Channel(0, "channel" + c, false, arena);
+            for (int m = 0; m < membersPerChannel; m++) {
+                channel.addUser(random.nextInt(1_000_000));
+            }
+            retained.add(channel);
+        }
+
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2_000_000; i++) {
+                Set<String> recipients = new TreeSet<>();
+                recipients.add("User" + (i & 1023));
+                checksum += recipients.size();
+            }
+            System.gc();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long memberships = 0;
+        for (Channel channel : retained) {
+            memberships += channel.size();
+        }
+        System.out.printf("mode=%s memberships=%d%n", offHeap ? "offheap" : "heap", memberships);
+        System.out.printf("gc collections=%d gc time=%d ms wall=%d ms (checksum %d)%n",
+                          gcCount() - gcCountBefore, gcTime() - gcTimeBefore, 
+                          elapsed / 1_000_000, checksum);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,61 @@
+import java.lang.management.*;
+import java.util.*;
+
+/*
+ * Measures what nicknames cost the model: the heap retained per registered
+ * user, and the time and garbage of resolving every user's nickname, as
+ * every message does for its recipients. Half of the users are renamed with
+ * NICK, so their names arrive as fresh Strings rather than generated ones.
+ *
+ *     java -Xmx2g NameTableBenchmark 20000 50
+ *
+ * The arguments are the number of users and the number of passes over them.
+ * This is not a JUnit test.
+ */
+
+public class NameTableBenchmark {
+
+    public static void main(String[] args) {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        long heapBefore = usedHeap();
+        ServerModel model = new ServerModel();
+        model.setClock(() -> 0L);
+        for (int i = 0; i < userCount; i++) {
+            model.registerUser(i);
+        }
+        for (int i = 0; i < userCount; i += 2) {
+            new NicknameCommand(i, "User" + i, "Renamed" + i).updateServerModel(model);
+        }
+        long retained = usedHeap() - heapBefore;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < userCount; i++) {
+                checksum += model.getNickname(i).length();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId())
+                         - allocatedBefore;
+
+        long lookups = (long) userCount * passes;
+        System.out.printf("retained heap: %d bytes per user%n", retained / userCount);
+        System.out.printf("nickname lookups: %.1f ns, %.1f bytes allocated each%n",
+                          (double) elapsed / lookups, (double) allocated / lookups);
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
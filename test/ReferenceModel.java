@@ -0,0 +1,544 @@
+import java.util.*;
+
+/*
+ * The reference model is a deliberately naive implementation of the chat
+ * protocol, used by DifferentialFuzzTest as the oracle for ServerModel. It
+ * keeps users in a map from ID to nickname and channels in a map from name
+ * to a plain record with a set of member IDs, recomputes every answer from
+ * scratch, and has none of ServerModel's indexes, caches, snapshots,
+ * compact member sets or off-heap storage. It is meant to be obviously
+ * correct rather than fast, and should stay that way: when the two models
+ * disagree, this one is the specification.
+ *
+ * Each channel keeps its whole history of joins and leaves, numbered from
+ * the channel's incarnation, and membership deltas are read back from it.
+ *
+ * Rate limiting is not modelled; the harness runs the real model with a
+ * clock that refills every bucket between commands.
+ */
+
+public class ReferenceModel {
+    private final boolean offHeapMembership;
+    private final SortedMap<Integer, String> users;
+    private final SortedMap<String, Chan> channels;
+    private long channelsCreated;
+
+    private static class Chan {
+        final int owner;
+        final boolean inviteOnly;
+        final long firstVersion;
+        final Set<Integer> members = new TreeSet<Integer>();
+        final List<Map.Entry<String, Boolean>> history = 
+            new ArrayList<Map.Entry<String, Boolean>>();
+        boolean large;
+
+        Chan(int owner, boolean inviteOnly, long incarnation) {
+            this.owner = owner;
+            this.inviteOnly = inviteOnly;
+            this.firstVersion = incarnation << MembershipLog.INCARNATION_SHIFT;
+            this.members.add(owner);
+        }
+
+        long version() {
+            return firstVersion + history.size();
+        }
+
+        void record(String nickname, boolean join) {
+            history.add(new AbstractMap.SimpleEntry<String, Boolean>(nickname, join));
+        }
+    }
+
+    /**
+     * @param offHeapMembership Whether the model under test keeps membership off-heap, which
+     *                          changes when a channel counts as large
+     */
+    public ReferenceModel(boolean offHeapMembership) {
+        this.offHeapMembership = offHeapMembership;
+        this.users = new TreeMap<Integer, String>();
+        this.channels = new TreeMap<String, Chan>();
+    }
+
+    //==========================================================================
+    // Queries
+    //==========================================================================
+
+    public boolean isRegistered(int userId) {
+        return users.containsKey(userId);
+    }
+
+    public String getNickname(int userId) {
+        return users.get(userId);
+    }
+
+    public Set<Integer> getUserIds() {
+        return users.keySet();
+    }
+
+    public Set<String> getRegisteredUsers() {
+        return new TreeSet<String>(users.values());
+    }
+
+    public Set<String> getChannels() {
+        return new TreeSet<String>(channels.keySet());
+    }
+
+    public Set<String> getUsers(String channelName) {
+        Set<String> names = new TreeSet<String>();
+        Chan channel = channels.get(channelName);
+        if (channel != null) {
+            for (int member : channel.members) {
+                names.add(users.get(member));
+            }
+        }
+        return names;
+    }
+
+    public int[] getMemberIds(String channelName) {
+        Set<Integer> members = channels.get(channelName).members;
+        int[] ids = new int[members.size()];
+        int i = 0;
+        for (int member : members) {
+            ids[i++] = member;
+        }
+        return ids;
+    }
+
+    public String getOwner(String channelName) {
+        return users.get(channels.get(channelName).owner);
+    }
+
+    public long getMembershipVersion(String channelName) {
+        Chan channel = channels.get(channelName);
+        return channel == null ? -1 : channel.version();
+    }
+
+    /*
+     * The net joins and leaves since the version, or a snapshot if the version is not one the
+     * channel had or is more than MembershipLog.CAPACITY changes behind.
+     */
+    public MembershipDelta getMembershipDelta(String channelName, long sinceVersion) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return null;
+        }
+        long version = channel.version();
+        if (sinceVersion < channel.firstVersion || sinceVersion > version
+                || version - sinceVersion > MembershipLog.CAPACITY) {
+            return MembershipDelta.snapshot(version, getUsers(channelName));
+        }
+        Set<String> joined = new TreeSet<String>();
+        Set<String> left = new TreeSet<String>();
+        for (Map.Entry<String, Boolean> change : channel.history.subList(
+                (int) (sinceVersion - channel.firstVersion), channel.history.size())) {
+            joined.remove(change.getKey());
+            left.remove(change.getKey());
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        return MembershipDelta.changes(version, joined, left);
+    }
+
+    /*
+     * The channel names with the prefix after the cursor, at most pageSize of them, followed by
+     * the cursor of the next page (or null) as the last element.
+     */
+    public List<String> listChannels(String prefix, String cursor, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        List<String> matching = new ArrayList<String>();
+        for (String channelName : channels.keySet()) {
+            if (channelName.startsWith(prefix)
+                    && (cursor == null || channelName.compareTo(cursor) > 0)) {
+                matching.add(channelName);
+            }
+        }
+        if (matching.size() <= pageSize) {
+            matching.add(null);
+            return matching;
+        }
+        List<String> page = new ArrayList<String>(matching.subList(0, pageSize));
+        page.add(matching.get(pageSize - 1));
+        return page;
+    }
+
+    private Integer idOf(String nickname) {
+        for (Map.Entry<Integer, String> user : users.entrySet()) {
+            if (user.getValue().equals(nickname)) {
+                return user.getKey();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Everyone who shares a channel with the user, the user included if it is in any channel.
+     */
+    private Set<String> neighbours(int userId) {
+        Set<String> names = new TreeSet<String>();
+        for (Chan channel : channels.values()) {
+            if (channel.members.contains(userId)) {
+                for (int member : channel.members) {
+                    names.add(users.get(member));
+                }
+            }
+        }
+        return names;
+    }
+
+    //==========================================================================
+    // Connections
+    //==========================================================================
+
+    public Broadcast registerUser(int userId) {
+        Set<String> taken = new HashSet<String>(users.values());
+        int suffix = 0;
+        while (taken.contains("User" + suffix)) {
+            suffix++;
+        }
+        users.put(userId, "User" + suffix);
+        return Broadcast.connected("User" + suffix);
+    }
+
+    public Broadcast deregisterUser(int userId) {
+        String nickname = users.get(userId);
+        Set<String> recipients = neighbours(userId);
+        recipients.remove(nickname);
+        for (String channelName : new ArrayList<String>(channels.keySet())) {
+            Chan channel = channels.get(channelName);
+            if (channel.owner == userId) {
+                channels.remove(channelName);
+            } else {
+                removeMember(channel, userId);
+            }
+        }
+        users.remove(userId);
+        return Broadcast.disconnected(nickname, recipients);
+    }
+
+    //==========================================================================
+    // Commands
+    //==========================================================================
+
+    public Broadcast nick(int senderId, String newNickname, Command command) {
+        if (!ServerModel.isValidName(newNickname)) {
+            return Broadcast.error(command, ServerError.INVALID_NAME);
+        }
+        if (idOf(newNickname) != null) {
+            return Broadcast.error(command, ServerError.NAME_ALREADY_IN_USE);
+        }
+        String oldNickname = users.put(senderId, newNickname);
+        for (Chan channel : channels.values()) {
+            if (channel.members.contains(senderId)) {
+                channel.record(oldNickname, false);
+                channel.record(newNickname, true);
+            }
+        }
+        return Broadcast.okay(command, neighbours(senderId));
+    }
+
+    public Broadcast create(int senderId, String channelName, boolean inviteOnly,
+                            Command command) {
+        if (!ServerModel.isValidName(channelName)) {
+            return Broadcast.error(command, ServerError.INVALID_NAME);
+        }
+        if (channels.containsKey(channelName)) {
+            return Broadcast.error(command, ServerError.CHANNEL_ALREADY_EXISTS);
+        }
+        channels.put(channelName, new Chan(senderId, inviteOnly, channelsCreated++));
+        return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+    }
+
+    public Broadcast join(int senderId, String channelName, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (channel.inviteOnly) {
+            return Broadcast.error(command, ServerError.JOIN_PRIVATE_CHANNEL);
+        }
+        addMember(channel, senderId);
+        return namesOrJoin(channelName, command);
+    }
+
+    public Broadcast message(int senderId, String channelName, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (!channel.members.contains(senderId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.okay(command, getUsers(channelName));
+    }
+
+    public Broadcast directMessage(int senderId, String recipient, Command command) {
+        if (idOf(recipient) == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_USER);
+        }
+        return Broadcast.okay(command, new TreeSet<String>(
+                Arrays.asList(users.get(senderId), recipient)));
+    }
+
+    public Broadcast sync(int senderId, String channelName, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (!channel.members.contains(senderId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+    }
+
+    public Broadcast names(int senderId, String channelName, Command command) {
+        return sync(senderId, channelName, command);
+    }
+
+    /*
+     * The nicknames of the members from the cursor on, in order of user ID, at most pageSize of
+     * them, followed by the cursor of the next page (or -1) as the last element.
+     */
+    public List<String> getUsersPage(String channelName, int cursor, int pageSize) {
+        List<String> page = new ArrayList<String>();
+        int next = -1;
+        Chan channel = channels.get(channelName);
+        if (channel != null) {
+            for (int member : channel.members) {
+                if (member < cursor) {
+                    continue;
+                }
+                if (page.size() == pageSize) {
+                    next = cursor;
+                    break;
+                }
+                page.add(users.get(member));
+                cursor = member + 1;
+            }
+        }
+        page.add(String.valueOf(next));
+        return page;
+    }
+
+    public Broadcast list(int senderId, String prefix, Command command) {
+        if (!prefix.isEmpty() && !ServerModel.isValidName(prefix)) {
+            return Broadcast.error(command, ServerError.INVALID_NAME);
+        }
+        return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+    }
+
+    public Broadcast leave(int senderId, String channelName, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        if (!channel.members.contains(senderId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        Set<String> previous = getUsers(channelName);
+        if (channel.owner == senderId) {
+            channels.remove(channelName);
+        } else {
+            removeMember(channel, senderId);
+        }
+        return Broadcast.okay(command, previous);
+    }
+
+    public Broadcast invite(int senderId, String channelName, String target, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        Integer targetId = idOf(target);
+        if (targetId == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_USER);
+        }
+        if (channel.owner != senderId) {
+            return Broadcast.error(command, ServerError.USER_NOT_OWNER);
+        }
+        if (!channel.inviteOnly) {
+            return Broadcast.error(command, ServerError.INVITE_TO_PUBLIC_CHANNEL);
+        }
+        addMember(channel, targetId);
+        return namesOrJoin(channelName, command);
+    }
+
+    public Broadcast kick(int senderId, String channelName, String target, Command command) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_CHANNEL);
+        }
+        Integer targetId = idOf(target);
+        if (targetId == null) {
+            return Broadcast.error(command, ServerError.NO_SUCH_USER);
+        }
+        if (channel.owner != senderId) {
+            return Broadcast.error(command, ServerError.USER_NOT_OWNER);
+        }
+        if (!channel.members.contains(targetId)) {
+            return Broadcast.error(command, ServerError.USER_NOT_IN_CHANNEL);
+        }
+        Set<String> previous = getUsers(channelName);
+        if (channel.owner == targetId) {
+            channels.remove(channelName);
+        } else {
+            removeMember(channel, targetId);
+        }
+        return Broadcast.okay(command, previous);
+    }
+
+    public Broadcast inviteAll(int senderId, String channelName, List<String> targets,
+                               Command command, Map<String, ServerError> outcomes) {
+        Chan channel = channels.get(channelName);
+        ServerError error = null;
+        if (channel == null) {
+            error = ServerError.NO_SUCH_CHANNEL;
+        } else if (channel.owner != senderId) {
+            error = ServerError.USER_NOT_OWNER;
+        } else if (!channel.inviteOnly) {
+            error = ServerError.INVITE_TO_PUBLIC_CHANNEL;
+        }
+        if (error != null) {
+            return failAll(targets, error, command, outcomes);
+        }
+        boolean changed = false;
+        for (String target : targets) {
+            Integer targetId = idOf(target);
+            if (targetId == null) {
+                outcomes.put(target, ServerError.NO_SUCH_USER);
+            } else {
+                addMember(channel, targetId);
+                outcomes.put(target, ServerError.OKAY);
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+        }
+        return namesOrJoin(channelName, command);
+    }
+
+    public Broadcast kickAll(int senderId, String channelName, List<String> targets,
+                             Command command, Map<String, ServerError> outcomes) {
+        Chan channel = channels.get(channelName);
+        if (channel == null) {
+            return failAll(targets, ServerError.NO_SUCH_CHANNEL, command, outcomes);
+        }
+        if (channel.owner != senderId) {
+            return failAll(targets, ServerError.USER_NOT_OWNER, command, outcomes);
+        }
+        Set<String> previous = getUsers(channelName);
+        boolean changed = false;
+        boolean ownerKicked = false;
+        for (String target : targets) {
+            Integer targetId = idOf(target);
+            if (targetId == null) {
+                outcomes.put(target, ServerError.NO_SUCH_USER);
+            } else if (!channel.members.contains(targetId)) {
+                outcomes.put(target, ServerError.USER_NOT_IN_CHANNEL);
+            } else {
+                if (targetId == channel.owner) {
+                    ownerKicked = true;
+                } else {
+                    removeMember(channel, targetId);
+                }
+                outcomes.put(target, ServerError.OKAY);
+                changed = true;
+            }
+        }
+        if (ownerKicked) {
+            channels.remove(channelName);
+        }
+        if (!changed) {
+            return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+        }
+        return Broadcast.okay(command, previous);
+    }
+
+    public Broadcast joinAll(int senderId, List<String> channelNames, Command command,
+                             Map<String, ServerError> outcomes,
+                             Map<String, Broadcast> broadcasts) {
+        for (String channelName : channelNames) {
+            Chan channel = channels.get(channelName);
+            if (channel == null) {
+                outcomes.put(channelName, ServerError.NO_SUCH_CHANNEL);
+            } else if (channel.inviteOnly) {
+                outcomes.put(channelName, ServerError.JOIN_PRIVATE_CHANNEL);
+            } else {
+                addMember(channel, senderId);
+                outcomes.put(channelName, ServerError.OKAY);
+            }
+        }
+        for (Map.Entry<String, ServerError> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() == ServerError.OKAY) {
+                Command join = new JoinCommand(senderId, users.get(senderId), outcome.getKey());
+                broadcasts.put(outcome.getKey(), namesOrJoin(outcome.getKey(), join));
+            }
+        }
+        return Broadcast.okay(command, Collections.singleton(users.get(senderId)));
+    }
+
+    public Broadcast messageAll(int senderId, List<String> channelNames, Command command,
+                                Map<String, ServerError> outcomes) {
+        Set<String> recipients = new TreeSet<String>();
+        for (String channelName : channelNames) {
+            Chan channel = channels.get(channelName);
+            if (channel == null) {
+                outcomes.put(channelName, ServerError.NO_SUCH_CHANNEL);
+            } else if (!channel.members.contains(senderId)) {
+                outcomes.put(channelName, ServerError.USER_NOT_IN_CHANNEL);
+            } else {
+                recipients.addAll(getUsers(channelName));
+                outcomes.put(channelName, ServerError.OKAY);
+            }
+        }
+        if (recipients.isEmpty()) {
+            recipients.add(users.get(senderId));
+        }
+        return Broadcast.okay(command, recipients);
+    }
+
+    //==========================================================================
+    // Helpers
+    //==========================================================================
+
+    private static Broadcast failAll(List<String> targets, ServerError error, Command command,
+                                     Map<String, ServerError> outcomes) {
+        for (String target : targets) {
+            outcomes.put(target, error);
+        }
+        return Broadcast.error(command, error);
+    }
+
+    /*
+     * Large channels answer a join with a plain OKAY rather than NAMES. On the heap a channel
+     * becomes large above Channel.LARGE_CHANNEL_THRESHOLD members and stops being large below
+     * half of it; off the heap it is large exactly while it is above the threshold.
+     */
+    private Broadcast namesOrJoin(String channelName, Command command) {
+        Chan channel = channels.get(channelName);
+        boolean large = offHeapMembership
+                ? channel.members.size() > Channel.LARGE_CHANNEL_THRESHOLD : channel.large;
+        if (large) {
+            return Broadcast.okay(command, getUsers(channelName));
+        }
+        return Broadcast.names(command, getUsers(channelName), users.get(channel.owner));
+    }
+
+    private void addMember(Chan channel, int userId) {
+        if (channel.members.add(userId)) {
+            channel.record(users.get(userId), true);
+        }
+        if (channel.members.size() > Channel.LARGE_CHANNEL_THRESHOLD) {
+            channel.large = true;
+        }
+    }
+
+    private void removeMember(Chan channel, int userId) {
+        if (channel.members.remove(userId)) {
+            channel.record(users.get(userId), false);
+        }
+        if (channel.members.size() < Channel.LARGE_CHANNEL_THRESHOLD / 2) {
+            channel.large = false;
+        }
+    }
+}
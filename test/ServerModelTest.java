@@ -581,6 +581,37 @@ public class ServerModelTest {
         assertTrue("unaffected user still in channel", model.getUsers("java").contains("User1"));
     }
     
+    @Test
+    public void testNickRenamesUserEverywhere() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        long seen = model.getMembershipVersion("java");
+
+        Command nick = new NicknameCommand(0, "User0", "Duke");
+        Set<String> recipients = new TreeSet<>();
+        recipients.add("Duke");
+        recipients.add("User1");
+        assertEquals("broadcast", Broadcast.okay(nick, recipients), nick.updateServerModel(model));
+
+        assertEquals("new nickname", "Duke", model.getNickname(0));
+        assertEquals("found by new nickname", 0, model.getUserId("Duke"));
+        assertEquals("old nickname gone", -1, model.getUserId("User0"));
+        assertEquals("channel members", recipients, model.getUsers("java"));
+        assertEquals("owner", "Duke", model.getOwner("java"));
+        assertEquals("snapshot", "Duke", model.snapshot().getNickname(0));
+        MembershipDelta delta = model.getMembershipDelta("java", seen);
+        assertEquals("rename joins", Collections.singleton("Duke"), delta.getJoined());
+        assertEquals("rename leaves", Collections.singleton("User0"), delta.getLeft());
+
+        Command reuse = new NicknameCommand(1, "User1", "User0");
+        recipients.remove("User1");
+        recipients.add("User0");
+        assertEquals("old nickname free", Broadcast.okay(reuse, recipients),
+                     reuse.updateServerModel(model));
+    }
+    
     @Test
     public void testLeaveChannelNonExistent() {
         model.registerUser(0);
@@ -680,6 +711,1409 @@ public class ServerModelTest {
         Broadcast expected = Broadcast.error(mesg, ServerError.USER_NOT_IN_CHANNEL);
         assertEquals("broadcast", expected, mesg.updateServerModel(model));
     }
+    
+    @Test
+    public void testMesgRateLimited() {
+        model.registerUser(0);
+        Command create = new CreateCommand(0, "User0", "java", false);
+        create.updateServerModel(model);
+
+        for (int i = 0; i < ServerModel.USER_MESSAGE_BURST; i++) {
+            new MessageCommand(0, "User0", "java", "spam").updateServerModel(model);
+        }
+        Command mesg = new MessageCommand(0, "User0", "java", "one too many");
+        Broadcast expected = Broadcast.error(mesg, ServerError.RATE_LIMITED);
+        assertEquals("broadcast", expected, mesg.updateServerModel(model));
+    }
+    
+    @Test
+    public void testCreateRateLimited() {
+        model.registerUser(0);
+        for (int i = 0; i < ServerModel.USER_CREATE_BURST; i++) {
+            new CreateCommand(0, "User0", "java" + i, false).updateServerModel(model);
+        }
+        Command create = new CreateCommand(0, "User0", "lava", false);
+        Broadcast expected = Broadcast.error(create, ServerError.RATE_LIMITED);
+        assertEquals("broadcast", expected, create.updateServerModel(model));
+        assertFalse("throttled channel not created", model.getChannels().contains("lava"));
+    }
+    
+    @Test
+    public void testTokenBucketRefills() {
+        TokenBucket bucket = new TokenBucket(2, 1);
+        assertTrue("first token", bucket.tryAcquire(0));
+        assertTrue("second token", bucket.tryAcquire(0));
+        assertFalse("bucket empty", bucket.tryAcquire(0));
+        assertTrue("refilled after one second", bucket.tryAcquire(1_000_000_000L));
+    }
+    
+    @Test
+    public void testLargeChannelNamesPaged() {
+        int members = Channel.LARGE_CHANNEL_THRESHOLD + 10;
+        for (int i = 0; i < members; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int i = 1; i < members; i++) {
+            new JoinCommand(i, "User" + i, "java").updateServerModel(model);
+        }
+        assertEquals("num. users in channel", members, model.getUsers("java").size());
+
+        Set<String> paged = new TreeSet<>();
+        int cursor = 0;
+        int pages = 0;
+        do {
+            NamesPage page = model.getUsersPage("java", cursor, 100);
+            assertTrue("page not too big", page.getNicknames().size() <= 100);
+            paged.addAll(page.getNicknames());
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != -1);
+        assertEquals("pages cover channel", model.getUsers("java"), paged);
+        assertEquals("num. pages", (members + 99) / 100, pages);
+    }
+    
+    @Test
+    public void testNamesCommandPagesLargeChannelForJoiner() {
+        int members = Channel.LARGE_CHANNEL_THRESHOLD + 10;
+        for (int i = 0; i <= members; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int i = 1; i < members; i++) {
+            new JoinCommand(i, "User" + i, "java").updateServerModel(model);
+        }
+        JoinCommand join = new JoinCommand(members, "User" + members, "java");
+        Broadcast joined = join.updateServerModel(model);
+        assertEquals("large channel join has no NAMES", 
+                     Broadcast.okay(join, model.getUsers("java")), joined);
+
+        NamesCommand outsider = new NamesCommand(members + 1, "Outsider", "java", 0);
+        assertEquals("members only", Broadcast.error(outsider, ServerError.USER_NOT_IN_CHANNEL),
+                     outsider.updateServerModel(model));
+        NamesCommand nowhere = new NamesCommand(members, "User" + members, "scala", 0);
+        assertEquals("no channel", Broadcast.error(nowhere, ServerError.NO_SUCH_CHANNEL),
+                     nowhere.updateServerModel(model));
+
+        Set<String> paged = new TreeSet<>();
+        int cursor = -5;
+        do {
+            NamesCommand names = new NamesCommand(members, "User" + members, "java", cursor);
+            assertEquals("page allowed", 
+                         Broadcast.okay(names, Collections.singleton("User" + members)),
+                         names.updateServerModel(model));
+            assertEquals("round trip", names, TrafficReplay.parse(members, names.toString()));
+            NamesPage page = model.getUsersPage("java", names.getCursor(), 
+                                                NamesCommand.PAGE_SIZE);
+            paged.addAll(page.getNicknames());
+            cursor = page.getNextCursor();
+        } while (cursor != -1);
+        assertEquals("joiner learns every member", model.getUsers("java"), paged);
+    }
+    
+    @Test
+    public void testParallelFanOutKeepsOrderPerRecipient() {
+        int recipients = FanOut.PARALLEL_THRESHOLD * 3;
+        int[] userIds = new int[recipients];
+        final List<List<String>> received = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            userIds[i] = i;
+            received.add(Collections.synchronizedList(new ArrayList<String>()));
+        }
+        FanOut fanOut = new FanOut();
+        FanOut.Deliverer deliverer = (userId, frame) -> received.get(userId).add(frame);
+        fanOut.deliver("java", userIds, "first", deliverer);
+        fanOut.deliver("java", userIds, "second", deliverer);
+        fanOut.deliver("java", userIds, "third", deliverer).join();
+
+        List<String> expected = Arrays.asList("first", "second", "third");
+        for (int i = 0; i < recipients; i++) {
+            assertEquals("frames for user " + i, expected, received.get(i));
+        }
+    }
+    
+    @Test
+    public void testMembershipDeltaSinceVersion() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        long seen = model.getMembershipVersion("java");
 
+        new JoinCommand(2, "User2", "java").updateServerModel(model);
+        new LeaveCommand(1, "User1", "java").updateServerModel(model);
 
+        Command sync = new SyncCommand(0, "User0", "java", seen);
+        Set<String> recipients = new TreeSet<>();
+        recipients.add("User0");
+        assertEquals("broadcast", Broadcast.okay(sync, recipients), sync.updateServerModel(model));
+
+        MembershipDelta delta = model.getMembershipDelta("java", seen);
+        assertFalse("delta, not snapshot", delta.isSnapshot());
+        assertEquals("joined", Collections.singleton("User2"), delta.getJoined());
+        assertEquals("left", Collections.singleton("User1"), delta.getLeft());
+        assertEquals("new version", seen + 2, delta.getVersion());
+    }
+    
+    @Test
+    public void testMembershipDeltaFallsBackToSnapshot() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int i = 0; i < MembershipLog.CAPACITY; i++) {
+            new JoinCommand(1, "User1", "java").updateServerModel(model);
+            new LeaveCommand(1, "User1", "java").updateServerModel(model);
+        }
+
+        MembershipDelta delta = model.getMembershipDelta("java", 0);
+        assertTrue("snapshot", delta.isSnapshot());
+        assertEquals("members", model.getUsers("java"), delta.getJoined());
+    }
+    
+    @Test
+    public void testMembershipLogKeepsChangesAsItGrows() {
+        MembershipLog log = new MembershipLog(1);
+        long first = log.getVersion();
+        for (int i = 0; i < MembershipLog.CAPACITY + 20; i++) {
+            log.recordJoin("User" + i);
+            long since = Math.max(first, log.getVersion() - MembershipLog.CAPACITY);
+            Set<String> joined = new TreeSet<>();
+            for (long v = since; v < log.getVersion(); v++) {
+                joined.add("User" + (v - first));
+            }
+            assertEquals("changes after " + (i + 1), joined, log.since(since).getJoined());
+        }
+        assertNull("overwritten", log.since(first));
+    }
+    
+    @Test
+    public void testMembershipDeltaForUnknownVersionIsSnapshot() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+
+        MembershipDelta negative = model.getMembershipDelta("java", -1);
+        assertTrue("negative version gets a snapshot", negative.isSnapshot());
+        assertEquals("members", model.getUsers("java"), negative.getJoined());
+
+        long seen = model.getMembershipVersion("java");
+        new LeaveCommand(1, "User1", "java").updateServerModel(model);
+        new LeaveCommand(0, "User0", "java").updateServerModel(model);
+        new CreateCommand(1, "User1", "java", false).updateServerModel(model);
+        new JoinCommand(0, "User0", "java").updateServerModel(model);
+
+        assertTrue("new incarnation, new versions", 
+                   model.getMembershipVersion("java") > seen);
+        MembershipDelta recreated = model.getMembershipDelta("java", seen);
+        assertTrue("old channel's version gets a snapshot", recreated.isSnapshot());
+        assertEquals("members", model.getUsers("java"), recreated.getJoined());
+    }
+    
+    @Test
+    public void testSnapshotUnaffectedByLaterCommands() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        ModelSnapshot before = model.snapshot();
+
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new CreateCommand(1, "User1", "lava", false).updateServerModel(model);
+        ModelSnapshot after = model.snapshot();
+
+        assertEquals("old snapshot channels", Collections.singletonList("java"), 
+                     new ArrayList<String>(before.getChannels()));
+        assertEquals("old snapshot members", 1, before.getUsers("java").size());
+        assertEquals("new snapshot channels", model.getChannels(), 
+                     new TreeSet<String>(after.getChannels()));
+        assertEquals("new snapshot members", model.getUsers("java"), after.getUsers("java"));
+        assertEquals("snapshot owner", "User1", after.getOwner("lava"));
+        assertTrue("epoch advances", after.getEpoch() > before.getEpoch());
+    }
+    
+    @Test
+    public void testListChannelsByPrefixAndPage() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "javadoc", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "javafx", false).updateServerModel(model);
+        new CreateCommand(1, "User1", "lava", false).updateServerModel(model);
+        new CreateCommand(1, "User1", "jazz", false).updateServerModel(model);
+
+        ChannelPage first = model.listChannels("java", null, 2);
+        assertEquals("first page", Arrays.asList("java", "javadoc"), first.getChannelNames());
+        assertFalse("more pages", first.isLast());
+
+        ChannelPage second = model.listChannels("java", first.getNextCursor(), 2);
+        assertEquals("second page", Arrays.asList("javafx"), second.getChannelNames());
+        assertTrue("last page", second.isLast());
+
+        assertEquals("all channels", 5, model.listChannels("", null, 10).getChannelNames().size());
+        
+        Command list = new ListCommand(0, "User0", "ja!", null);
+        Broadcast expected = Broadcast.error(list, ServerError.INVALID_NAME);
+        assertEquals("broadcast", expected, list.updateServerModel(model));
+    }
+    
+    @Test
+    public void testPagesRejectSizesBelowOne() {
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        assertEquals("size one", Arrays.asList("java"), 
+                     model.listChannels("", null, 1).getChannelNames());
+        for (int pageSize : new int[] { 0, -1 }) {
+            try {
+                model.listChannels("", null, pageSize);
+                fail("channel page of size " + pageSize);
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                model.getUsersPage("java", 0, pageSize);
+                fail("names page of size " + pageSize);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+    
+    @Test
+    public void testPersistentMapStaysBalancedForCollidingKeys() {
+        List<String> names = new ArrayList<String>();
+        names.add("");
+        for (int block = 0; block < 15; block++) {
+            List<String> longer = new ArrayList<String>();
+            for (String name : names) {
+                longer.add(name + "Aa");
+                longer.add(name + "BB");
+            }
+            names = longer;
+        }
+        Collections.sort(names);
+        assertEquals("same hash", names.get(0).hashCode(), names.get(names.size() - 1).hashCode());
+
+        PersistentSortedMap<String, Integer> map = PersistentSortedMap.empty();
+        for (int i = 0; i < names.size(); i++) {
+            map = map.put(names.get(i), i);
+        }
+        assertEquals("size", names.size(), map.size());
+        assertEquals("sorted", names, map.keys());
+        for (String name : names) {
+            map = map.remove(name);
+        }
+        assertTrue("emptied", map.isEmpty());
+    }
+    
+    @Test
+    public void testOutsidersCannotDrainChannelBucket() {
+        long[] clock = { 0 };
+        model.setClock(() -> clock[0]);
+        int outsiders = ServerModel.CHANNEL_MESSAGE_BURST / ServerModel.USER_MESSAGE_BURST + 5;
+        for (int i = 0; i < outsiders + 3; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        for (int i = 3; i < outsiders + 3; i++) {
+            for (int m = 0; m < ServerModel.USER_MESSAGE_BURST; m++) {
+                new MessageCommand(i, "User" + i, "java", "spam").updateServerModel(model);
+            }
+        }
+        MessageCommand member = new MessageCommand(1, "User1", "java", "still here");
+        assertEquals("member can talk", 
+                     Broadcast.okay(member, new TreeSet<>(Arrays.asList("User0", "User1"))),
+                     member.updateServerModel(model));
+
+        clock[0] += 4_000_000_000L;
+        Set<String> members = new TreeSet<>(Arrays.asList("User0", "User1"));
+        for (int i = 3; i < outsiders + 3; i++) {
+            new JoinCommand(i, "User" + i, "java").updateServerModel(model);
+            members.add("User" + i);
+        }
+        int last = outsiders + 2;
+        MessageCommand late = new MessageCommand(last, "User" + last, "java", "hi");
+        for (int i = 3; i < last; i++) {
+            for (int m = 0; m < ServerModel.USER_MESSAGE_BURST; m++) {
+                new MessageCommand(i, "User" + i, "java", "busy").updateServerModel(model);
+            }
+        }
+        for (int m = 0; m < ServerModel.USER_MESSAGE_BURST; m++) {
+            assertEquals("channel full", Broadcast.error(late, ServerError.RATE_LIMITED),
+                         late.updateServerModel(model));
+        }
+        clock[0] += ServerModel.USER_MESSAGE_BURST 
+                    * (long) (1_000_000_000L / ServerModel.CHANNEL_MESSAGES_PER_SECOND);
+        for (int m = 0; m < ServerModel.USER_MESSAGE_BURST; m++) {
+            assertEquals("sender's tokens given back", Broadcast.okay(late, members),
+                         late.updateServerModel(model));
+        }
+    }
+    
+    @Test
+    public void testNameTableHandlesAreStable() {
+        NameTable table = new NameTable();
+        int duke = table.intern("Duke");
+        for (int i = 0; i < 1000; i++) {
+            table.release(table.intern("User" + i));
+        }
+        assertEquals("same handle for same name", duke, table.intern("Duke"));
+        assertEquals("name survives reuse of handles", "Duke", table.name(duke));
+        assertEquals("released names gone", -1, table.lookup("User5"));
+        assertEquals("num. names", 1, table.size());
+    }
+    
+    @Test
+    public void testGetUsersIsUnmodifiableForAnyChannel() {
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (String channel : Arrays.asList("java", "scala")) {
+            try {
+                model.getUsers(channel).add("Intruder");
+                fail("modified users of " + channel);
+            } catch (UnsupportedOperationException expected) {
+            }
+        }
+        assertEquals("no such channel", Collections.emptySet(), model.getUsers("scala"));
+        assertEquals("java unchanged", Collections.singleton("User0"), model.getUsers("java"));
+    }
+    
+    @Test
+    public void testNicknamesAreStoredOnce() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        for (int i = 0; i < 2; i++) {
+            assertSame("live and snapshot share the name", model.getNickname(i),
+                       model.snapshot().getNickname(i));
+            assertSame("no copy per lookup", model.getNickname(i), model.getNickname(i));
+        }
+    }
+    
+    @Test
+    public void testGetUserIdAfterDeregister() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.deregisterUser(0);
+        model.registerUser(2);
+
+        assertEquals("freed nickname reused", "User0", model.getNickname(2));
+        assertEquals("nickname maps to new user", 2, model.getUserId("User0"));
+        assertEquals("other user unaffected", 1, model.getUserId("User1"));
+    }
+    
+    @Test
+    public void testDeregisterLeavesChannelsAndDropsOwned() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(1, "User1", "lava", false).updateServerModel(model);
+        new JoinCommand(0, "User0", "lava").updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+
+        Set<String> recipients = new TreeSet<>();
+        recipients.add("User1");
+        assertEquals("broadcast", Broadcast.disconnected("User0", recipients), 
+                     model.deregisterUser(0));
+
+        assertFalse("owned channel removed", model.getChannels().contains("java"));
+        assertEquals("left other channel", Collections.singleton("User1"), model.getUsers("lava"));
+        assertNull("nickname gone", model.getNickname(0));
+        assertEquals("num. registered users", 1, model.getRegisteredUsers().size());
+    }
+    
+    @Test
+    public void testOffHeapMembershipBehavesLikeHeap() {
+        ServerModel offHeap = new ServerModel(true);
+        for (ServerModel m : Arrays.asList(model, offHeap)) {
+            m.registerUser(0);
+            m.registerUser(1);
+            m.registerUser(2);
+            new CreateCommand(0, "User0", "java", false).updateServerModel(m);
+            new JoinCommand(1, "User1", "java").updateServerModel(m);
+            new JoinCommand(2, "User2", "java").updateServerModel(m);
+            new KickCommand(0, "User0", "java", "User1").updateServerModel(m);
+        }
+        assertEquals("members", model.getUsers("java"), offHeap.getUsers("java"));
+
+        new LeaveCommand(0, "User0", "java").updateServerModel(offHeap);
+        assertFalse("channel destroyed", offHeap.getChannels().contains("java"));
+    }
+    
+    @Test
+    public void testOffHeapArenaReusesFreedBlocks() {
+        OffHeapArena arena = new OffHeapArena();
+        OffHeapMemberSet members = new OffHeapMemberSet(arena);
+        for (int i = 0; i < 1000; i++) {
+            members.add(i);
+        }
+        assertTrue("members off-heap", arena.getAllocatedBytes() >= 4000);
+        members.release();
+        assertEquals("all blocks freed", 0, arena.getAllocatedBytes());
+    }
+    
+    @Test
+    public void testMesgWithBuilderAllocatesNothing() {
+        int members = 100;
+        Command[] messages = new Command[members];
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int i = 1; i < members; i++) {
+            model.registerUser(i);
+            new JoinCommand(i, "User" + i, "java").updateServerModel(model);
+        }
+        for (int i = 0; i < members; i++) {
+            messages[i] = new MessageCommand(i, "User" + i, "java", "hello");
+        }
+        BroadcastBuilder out = BroadcastBuilder.current();
+        for (int i = 0; i < members / 2; i++) {
+            out.reset();
+            messages[i].updateServerModel(model, out);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+                java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = members / 2; i < members; i++) {
+            out.reset();
+            messages[i].updateServerModel(model, out);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("last result", BroadcastBuilder.Kind.OKAY, out.getKind());
+        assertEquals("recipients", members, out.getRecipientCount());
+        assertEquals("same as Broadcast path", 
+                     Broadcast.okay(messages[members - 1], model.getUsers("java")), 
+                     out.toBroadcast(model));
+        assertEquals("bytes allocated", 0, allocated);
+    }
+    
+    @Test
+    public void testCachedNamesFollowMembershipAndRenames() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        Collection<String> first = model.getUsers("java");
+        assertSame("view reused while unchanged", first, model.getUsers("java"));
+
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        assertEquals("join invalidates", 2, model.getUsers("java").size());
+        assertEquals("old view untouched", 1, first.size());
+
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        assertTrue("rename invalidates", model.getUsers("java").contains("Duke"));
+        assertFalse("old nickname gone", model.getUsers("java").contains("User1"));
+
+        new KickCommand(0, "User0", "java", "Duke").updateServerModel(model);
+        assertEquals("kick invalidates", Collections.singleton("User0"), model.getUsers("java"));
+    }
+    
+    @Test
+    public void testOfflineMessagesDeliveredOnReconnect() throws Exception {
+        java.io.File spill = java.nio.file.Files.createTempDirectory("offline").toFile();
+        model.enableOfflineDelivery(new OfflineStore(spill));
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        new JoinCommand(1, "Duke", "java").updateServerModel(model);
+        model.deregisterUser(1);
+
+        Command first = new MessageCommand(0, "User0", "java", "hello");
+        Command second = new MessageCommand(0, "User0", "java", "still there?");
+        first.updateServerModel(model);
+        second.updateServerModel(model);
+
+        model.registerUser(2);
+        assertTrue("generated nickname gets nothing", model.drainOfflineMessages(2).isEmpty());
+        new NicknameCommand(2, "User2", "Duke").updateServerModel(model);
+        assertEquals("captured in order", 
+                     Arrays.asList(first.toString(), second.toString()), 
+                     model.drainOfflineMessages(2));
+        assertTrue("handed over once", model.drainOfflineMessages(2).isEmpty());
+    }
+    
+    @Test
+    public void testOfflineQueueSpillsToDisk() throws Exception {
+        java.io.File segment = java.io.File.createTempFile("offline", ".spill");
+        OfflineQueue queue = new OfflineQueue(segment);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < OfflineQueue.MEMORY_LIMIT + 10; i++) {
+            expected.add(":User0 MESG java :" + i);
+            queue.add(expected.get(i));
+        }
+        assertEquals("spilled", 10, queue.getSpilled());
+        assertEquals("memory then disk", expected, queue.drain());
+        assertFalse("segment deleted", segment.exists());
+    }
+    
+    @Test
+    public void testOfflineQueueIgnoresStaleSegmentAndSpillsInBatches() throws Exception {
+        java.io.File segment = java.io.File.createTempFile("offline", ".spill");
+        java.nio.file.Files.write(segment.toPath(), new byte[] { 0, 5, 's', 't', 'a', 'l', 'e' });
+        OfflineQueue queue = new OfflineQueue(segment);
+        assertFalse("stale segment deleted", segment.exists());
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < OfflineQueue.MEMORY_LIMIT + OfflineQueue.SPILL_BATCH + 3; i++) {
+            expected.add(":User0 MESG java :" + i);
+            queue.add(expected.get(i));
+        }
+        assertEquals("one batch written", 
+                     OfflineQueue.SPILL_BATCH * (2 + ":User0 MESG java :".length() + 3),
+                     segment.length());
+        assertEquals("spilled", OfflineQueue.SPILL_BATCH + 3, queue.getSpilled());
+        assertEquals("memory, disk, then batch", expected, queue.drain());
+        assertFalse("segment deleted", segment.exists());
+    }
+    
+    @Test
+    public void testOfflineStoreForgetsLongestAwayOverCap() throws Exception {
+        OfflineStore store = new OfflineStore(
+                java.nio.file.Files.createTempDirectory("offline").toFile());
+        for (int i = 0; i <= OfflineStore.MAX_IDENTITIES; i++) {
+            store.away("Nick" + i, Collections.singleton("java"));
+        }
+        store.capture("java", ":User0 MESG java :hi");
+        assertEquals("longest away forgotten", 0, store.pending("Nick0"));
+        assertEquals("next kept", 1, store.pending("Nick1"));
+        assertEquals("newest kept", 1, store.pending("Nick" + OfflineStore.MAX_IDENTITIES));
+    }
+    
+    @Test
+    public void testOfflineStoreIgnoresIdentitiesWithNoChannels() throws Exception {
+        OfflineStore store = new OfflineStore(
+                java.nio.file.Files.createTempDirectory("offline").toFile());
+        store.away("Duke", Collections.singleton("java"));
+        for (int i = 0; i < OfflineStore.MAX_IDENTITIES; i++) {
+            store.away("Nick" + i, Collections.<String>emptyList());
+        }
+        store.capture("java", ":User0 MESG java :hi");
+        assertEquals("not pushed out", 1, store.pending("Duke"));
+        assertEquals("no queue", Collections.emptyList(), store.reclaim("Nick0"));
+    }
+    
+    @Test
+    public void testInviteOnlyChannelsAreNotCapturedOffline() throws Exception {
+        model.enableOfflineDelivery(new OfflineStore(
+                java.nio.file.Files.createTempDirectory("offline").toFile()));
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "secret", true).updateServerModel(model);
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        new JoinCommand(1, "Duke", "java").updateServerModel(model);
+        new InviteCommand(0, "User0", "secret", "Duke").updateServerModel(model);
+        model.deregisterUser(1);
+
+        Command open = new MessageCommand(0, "User0", "java", "hello");
+        open.updateServerModel(model);
+        new MessageCommand(0, "User0", "secret", "for members only").updateServerModel(model);
+
+        model.registerUser(2);
+        new NicknameCommand(2, "User2", "Duke").updateServerModel(model);
+        assertEquals("only the public channel", Collections.singletonList(open.toString()),
+                     model.drainOfflineMessages(2));
+    }
+    
+    @Test
+    public void testCapturedTrafficReplaysToSameState() throws Exception {
+        java.io.File capture = java.io.File.createTempFile("traffic", ".bin");
+        TrafficRecorder recorder = new TrafficRecorder(capture);
+        model.setRecorder(recorder);
+        model.registerUser(0);
+        model.registerUser(1);
+        model.execute(new CreateCommand(0, "User0", "java", true));
+        model.execute(new InviteCommand(0, "User0", "java", "User1"));
+        model.execute(new NicknameCommand(1, "User1", "Duke"));
+        for (int i = 0; i < ServerModel.USER_MESSAGE_BURST + 5; i++) {
+            model.execute(new MessageCommand(1, "Duke", "java", "hi there " + i));
+        }
+        model.execute(new ListCommand(1, "Duke", "", null));
+        model.registerUser(2);
+        model.execute(new CreateCommand(2, "User2", "scala", false));
+        model.deregisterUser(0);
+        recorder.close(model);
+
+        ReplayReport report = new TrafficReplay(new ServerModel()).replay(capture, false);
+        assertEquals("events", recorder.getEvents(), report.getEvents());
+        assertEquals("commands", ServerModel.USER_MESSAGE_BURST + 10, report.getCommands());
+        assertTrue("state matches", report.stateMatches());
+        capture.delete();
+    }
+    
+    @Test
+    public void testReplayParsesEveryWireForm() {
+        Command[] commands = {
+            new NicknameCommand(3, "User3", "Duke"),
+            new CreateCommand(3, "Duke", "java", true),
+            new JoinCommand(3, "Duke", "java"),
+            new MessageCommand(3, "Duke", "java", "a :colon and  spaces"),
+            new SyncCommand(3, "Duke", "java", 42),
+            new ListCommand(3, "Duke", "", null),
+            new ListCommand(3, "Duke", "ja", "java"),
+            new LeaveCommand(3, "Duke", "java"),
+            new InviteCommand(3, "Duke", "java", "User4"),
+            new KickCommand(3, "Duke", "java", "User4"),
+        };
+        for (Command command : commands) {
+            Command parsed = TrafficReplay.parse(3, command.toString());
+            assertEquals("round trip", command, parsed);
+            assertEquals("sender ID", 3, parsed.getSenderId());
+        }
+    }
+    
+    @Test
+    public void testBusyChannelPromotedAndDemoted() {
+        final long[] time = {0};
+        model.setClock(() -> time[0]);
+        int members = 400;
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int i = 1; i < members; i++) {
+            model.registerUser(i);
+            new JoinCommand(i, "User" + i, "java").updateServerModel(model);
+        }
+        for (int i = 0; i < 40 * 30 && !model.isHot("java"); i++) {
+            time[0] += 25_000_000L;
+            new MessageCommand(i % members, "User" + (i % members), "java", "hi")
+                    .updateServerModel(model);
+        }
+        assertTrue("promoted", model.isHot("java"));
+        assertEquals("hot channels", Collections.singleton("java"), model.getHotChannels());
+        assertEquals("promotions", 1, model.getHotPromotions());
+        int[] members1 = model.getUserIds("java");
+        assertSame("member list encoded once", members1, model.getUserIds("java"));
+        new LeaveCommand(1, "User1", "java").updateServerModel(model);
+        assertEquals("re-encoded on leave", members - 1, model.getUserIds("java").length);
+
+        time[0] += 60_000_000_000L;
+        model.sweepHotChannels();
+        assertFalse("demoted", model.isHot("java"));
+        assertEquals("demotions", 1, model.getHotDemotions());
+        assertTrue("rate decayed", model.getMessageRate("java") < 1);
+    }
+    
+    @Test
+    public void testHotLaneBatchesInOrder() {
+        int recipients = 50;
+        int[] userIds = new int[recipients];
+        final List<List<String>> received = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            userIds[i] = i;
+            received.add(Collections.synchronizedList(new ArrayList<String>()));
+        }
+        final int[] batches = {0};
+        FanOut.Deliverer deliverer = new FanOut.Deliverer() {
+            public void deliver(int userId, String frame) {
+                received.get(userId).add(frame);
+            }
+            public void deliver(int userId, List<String> frames) {
+                if (userId == 0) {
+                    batches[0]++;
+                }
+                received.get(userId).addAll(frames);
+            }
+        };
+        FanOut fanOut = new FanOut();
+        List<String> expected = new ArrayList<>();
+        fanOut.deliver("java", userIds, "cold", deliverer);
+        expected.add("cold");
+        for (int i = 0; i < 1000; i++) {
+            fanOut.deliver("java", userIds, "hot" + i, deliverer, true);
+            expected.add("hot" + i);
+        }
+        assertEquals("lane", 1, fanOut.getLaneCount());
+        fanOut.deliver("java", userIds, "cooled", deliverer).join();
+        expected.add("cooled");
+        assertEquals("lane stopped", 0, fanOut.getLaneCount());
+
+        for (int i = 0; i < recipients; i++) {
+            assertEquals("frames for user " + i, expected, received.get(i));
+        }
+        assertTrue("batched", batches[0] >= 1 && batches[0] <= 1000);
+    }
+    
+    @Test
+    public void testBulkInviteAndKickReportPerUser() {
+        for (int i = 0; i < 4; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", true).updateServerModel(model);
+        BulkInviteCommand invite = new BulkInviteCommand(0, "User0", "java", 
+                Arrays.asList("User1", "Nobody", "User2", "User3"));
+        Set<String> members = new TreeSet<>(Arrays.asList("User0", "User1", "User2", "User3"));
+        assertEquals("one NAMES broadcast", Broadcast.names(invite, members, "User0"), 
+                     invite.updateServerModel(model));
+        assertEquals("succeeded", Arrays.asList("User1", "User2", "User3"), 
+                     invite.getResult().getSucceeded());
+        assertEquals("failed", Collections.singletonMap("Nobody", ServerError.NO_SUCH_USER),
+                     invite.getResult().getFailed());
+
+        BulkKickCommand kick = new BulkKickCommand(0, "User0", "java", 
+                Arrays.asList("User1", "User3", "User1"));
+        assertEquals("one broadcast to previous members", Broadcast.okay(kick, members), 
+                     kick.updateServerModel(model));
+        assertEquals("remaining", new TreeSet<>(Arrays.asList("User0", "User2")), 
+                     model.getUsers("java"));
+
+        BulkKickCommand notOwner = new BulkKickCommand(2, "User2", "java", 
+                Arrays.asList("User0", "User1"));
+        assertEquals("checked once", Broadcast.error(notOwner, ServerError.USER_NOT_OWNER), 
+                     notOwner.updateServerModel(model));
+        assertEquals("every target failed", 2, notOwner.getResult().getFailed().size());
+    }
+    
+    @Test
+    public void testBulkJoin() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "secret", true).updateServerModel(model);
+        new CreateCommand(0, "User0", "scala", false).updateServerModel(model);
+        BulkJoinCommand join = new BulkJoinCommand(1, "User1", 
+                Arrays.asList("java", "secret", "scala", "nope"));
+        assertEquals("reply to the sender alone", 
+                     Broadcast.okay(join, Collections.singleton("User1")), 
+                     join.updateServerModel(model));
+        assertEquals("joined", Arrays.asList("java", "scala"), join.getResult().getSucceeded());
+        assertEquals("private", ServerError.JOIN_PRIVATE_CHANNEL, 
+                     join.getResult().getOutcomes().get("secret"));
+        assertEquals("missing", ServerError.NO_SUCH_CHANNEL, 
+                     join.getResult().getOutcomes().get("nope"));
+        assertTrue("in scala", model.getUsers("scala").contains("User1"));
+        assertEquals("round trip", join, TrafficReplay.parse(1, join.toString()));
+    }
+    
+    @Test
+    public void testBulkJoinBroadcastsEachChannelToItsOwnMembers() {
+        for (int i = 0; i < 3; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(1, "User1", "scala", false).updateServerModel(model);
+        new CreateCommand(1, "User1", "secret", true).updateServerModel(model);
+        BulkJoinCommand join = new BulkJoinCommand(2, "User2", 
+                Arrays.asList("java", "secret", "scala"));
+        join.updateServerModel(model);
+
+        Map<String, Broadcast> broadcasts = join.getResult().getBroadcasts();
+        assertEquals("only joined channels", Arrays.asList("java", "scala"), 
+                     new ArrayList<>(broadcasts.keySet()));
+        Set<String> java = new TreeSet<>(Arrays.asList("User0", "User2"));
+        assertEquals("java sees its own join", 
+                     Broadcast.names(new JoinCommand(2, "User2", "java"), java, "User0"), 
+                     broadcasts.get("java"));
+        Set<String> scala = new TreeSet<>(Arrays.asList("User1", "User2"));
+        assertEquals("scala sees its own join", 
+                     Broadcast.names(new JoinCommand(2, "User2", "scala"), scala, "User1"), 
+                     broadcasts.get("scala"));
+    }
+
+    @Test
+    public void testBulkJoinPagesLargeChannels() {
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "big", false).updateServerModel(model);
+        for (int i = 1; i <= Channel.LARGE_CHANNEL_THRESHOLD; i++) {
+            model.registerUser(i);
+            new JoinCommand(i, model.getNickname(i), "big").updateServerModel(model);
+        }
+        int joiner = Channel.LARGE_CHANNEL_THRESHOLD + 1;
+        model.registerUser(joiner);
+        String nickname = model.getNickname(joiner);
+        BulkJoinCommand join = new BulkJoinCommand(joiner, nickname, Arrays.asList("big"));
+        join.updateServerModel(model);
+        assertEquals("large channel only announces the join", 
+                     Broadcast.okay(new JoinCommand(joiner, nickname, "big"), 
+                                    model.getUsers("big")), 
+                     join.getResult().getBroadcasts().get("big"));
+    }
+
+    @Test
+    public void testMultiChannelMessageReachesEachUserOnce() {
+        for (int i = 0; i < 4; i++) {
+            model.registerUser(i);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "scala", false).updateServerModel(model);
+        new CreateCommand(3, "User3", "rust", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new JoinCommand(1, "User1", "scala").updateServerModel(model);
+        new JoinCommand(2, "User2", "scala").updateServerModel(model);
+
+        MultiMessageCommand post = new MultiMessageCommand(0, "User0", 
+                Arrays.asList("java", "scala", "rust", "nope"), "release today");
+        assertEquals("union of members", 
+                     Broadcast.okay(post, new TreeSet<>(Arrays.asList("User0", "User1", "User2"))),
+                     post.updateServerModel(model));
+        assertEquals("sent to", Arrays.asList("java", "scala"), post.getResult().getSucceeded());
+        assertEquals("not a member", ServerError.USER_NOT_IN_CHANNEL, 
+                     post.getResult().getOutcomes().get("rust"));
+
+        MultiMessageCommand again = new MultiMessageCommand(0, "User0", 
+                Arrays.asList("java", "scala"), "and again");
+        BroadcastBuilder out = new BroadcastBuilder();
+        again.updateServerModel(model, out);
+        assertEquals("each recipient once", 3, out.getRecipientCount());
+        assertEquals("same as Broadcast path", 
+                     Broadcast.okay(again, new TreeSet<>(Arrays.asList("User0", "User1", "User2"))),
+                     out.toBroadcast(model));
+        assertEquals("round trip", again, TrafficReplay.parse(0, again.toString()));
+    }
+    
+    @Test
+    public void testMultiChannelMessageSendsToRepeatedChannelOnce() throws Exception {
+        model.setClock(() -> 0L);
+        OfflineStore store = new OfflineStore(
+                java.nio.file.Files.createTempDirectory("offline").toFile());
+        model.enableOfflineDelivery(store);
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        new JoinCommand(1, "Duke", "java").updateServerModel(model);
+        model.deregisterUser(1);
+
+        MultiMessageCommand post = new MultiMessageCommand(0, "User0", 
+                Collections.nCopies(ServerModel.CHANNEL_MESSAGE_BURST, "java"), "echo");
+        assertEquals("broadcast", Broadcast.okay(post, Collections.singleton("User0")),
+                     post.updateServerModel(model));
+        assertEquals("sent to", Collections.singletonList("java"), 
+                     post.getResult().getSucceeded());
+        assertEquals("captured once", 1, store.pending("Duke"));
+        MessageCommand after = new MessageCommand(0, "User0", "java", "still allowed");
+        assertEquals("one token taken", Broadcast.okay(after, Collections.singleton("User0")),
+                     after.updateServerModel(model));
+    }
+    
+    @Test
+    public void testCompressedConnectionRoundTrip() {
+        model.registerUser(0, true);
+        model.registerUser(1);
+        assertNull("plain connection", model.getCompressor(1));
+        FrameCompressor compressor = model.getCompressor(0);
+        FrameDecompressor decompressor = new FrameDecompressor();
+
+        StringBuilder names = new StringBuilder(":User0 NAMES java");
+        for (int i = 0; i < 500; i++) {
+            names.append(" User").append(i);
+        }
+        List<String> frames = Arrays.asList(":User1 MESG java :hi", names.toString(), 
+                                            ":User2 MESG java :caf\u00e9", names.toString());
+        for (String frame : frames) {
+            assertEquals("round trip", frame, decompressor.decompress(compressor.compress(frame)));
+        }
+        assertEquals("small frames raw", 2, compressor.getFramesRaw());
+        assertEquals("large frames deflated", 2, compressor.getFramesDeflated());
+        assertTrue("smaller on the wire", 
+                   compressor.getBytesOut() * 4 < compressor.getBytesIn());
+        model.deregisterUser(0);
+    }
+    
+    @Test
+    public void testIdleUsersPingedThenDisconnected() {
+        final long[] time = {0};
+        final long second = 1_000_000_000L;
+        model.setClock(() -> time[0]);
+        model.enableIdleDetection(30 * second, 90 * second);
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+
+        time[0] = 20 * second;
+        model.execute(new CreateCommand(1, "User1", "java", false));
+        time[0] = 31 * second;
+        IdleSweep first = model.sweepIdleUsers();
+        assertArrayEquals("silent users pinged", new int[] {0, 2}, sortedCopy(first.getPings()));
+        assertTrue("nobody timed out yet", first.getDisconnects().isEmpty());
+
+        time[0] = 35 * second;
+        model.touch(2);
+        time[0] = 95 * second;
+        IdleSweep second95 = model.sweepIdleUsers();
+        assertArrayEquals("keepalives due", new int[] {1, 2}, sortedCopy(second95.getPings()));
+        assertEquals("timed out", 
+                     Collections.singletonList(Broadcast.disconnected("User0", 
+                                                                      Collections.<String>emptySet())),
+                     second95.getDisconnects());
+        assertFalse("deregistered", model.getRegisteredUsers().contains("User0"));
+        assertEquals("still here", 2, model.getRegisteredUsers().size());
+    }
+    
+    private static int[] sortedCopy(int[] values) {
+        int[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+    
+    @Test
+    public void testTimingWheelMatchesSortedDeadlines() {
+        Random random = new Random(120);
+        long now = -5_000_000_000L;
+        TimingWheel wheel = new TimingWheel(1000, 64, now);
+        Map<Integer, Long> reference = new HashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            int id = random.nextInt(500);
+            int action = random.nextInt(10);
+            if (action < 5) {
+                long deadline = now + 1000 * (1 + random.nextInt(200));
+                wheel.schedule(id, deadline);
+                reference.put(id, deadline);
+            } else if (action < 6) {
+                wheel.cancel(id);
+                reference.remove(id);
+            } else {
+                now += 1000 * random.nextInt(5);
+                final long at = now;
+                final Set<Integer> fired = new HashSet<>();
+                wheel.advance(now, fired::add);
+                Set<Integer> expected = new HashSet<>();
+                for (Map.Entry<Integer, Long> entry : reference.entrySet()) {
+                    if (entry.getValue() <= at) {
+                        expected.add(entry.getKey());
+                    }
+                }
+                reference.keySet().removeAll(expected);
+                assertEquals("expired at " + now, expected, fired);
+                assertEquals("pending", reference.size(), wheel.size());
+            }
+        }
+    }
+    
+    @Test
+    public void testSchedulerIsFairAndPrioritizesControl() {
+        final long[] time = {0};
+        CommandScheduler scheduler = new CommandScheduler(() -> time[0]);
+        for (int i = 0; i < 100; i++) {
+            assertTrue("queued", scheduler.offer(new MessageCommand(1, "Spammer", "java", "" + i)));
+        }
+        Command quiet = new MessageCommand(2, "Quiet", "java", "hello");
+        Command kick = new KickCommand(0, "Owner", "java", "Spammer");
+        scheduler.offer(quiet);
+        scheduler.offer(kick);
+
+        assertSame("moderation first", kick, scheduler.poll());
+        List<Command> served = new ArrayList<>();
+        for (int i = 0; i < CommandScheduler.QUANTUM + 1; i++) {
+            served.add(scheduler.poll());
+        }
+        assertTrue("quiet user not starved", served.contains(quiet));
+        assertEquals("rest", 100 - CommandScheduler.QUANTUM, scheduler.size());
+    }
+    
+    @Test
+    public void testSchedulerBoundsMessageDelay() {
+        final long[] time = {0};
+        CommandScheduler scheduler = new CommandScheduler(() -> time[0]);
+        Command message = new MessageCommand(1, "User1", "java", "hi");
+        scheduler.offer(message);
+        for (int i = 0; i < 10; i++) {
+            scheduler.offer(new JoinCommand(2 + i, "User" + (2 + i), "java"));
+        }
+        assertTrue("control first", scheduler.poll() instanceof JoinCommand);
+        time[0] = CommandScheduler.MAX_MESSAGE_DELAY_NANOS;
+        assertSame("message served once overdue", message, scheduler.poll());
+
+        for (int i = 0; i < CommandScheduler.MAX_QUEUED_PER_SENDER; i++) {
+            scheduler.offer(new MessageCommand(5, "User5", "java", "x"));
+        }
+        assertFalse("per-sender cap", scheduler.offer(new MessageCommand(5, "User5", "java", "x")));
+    }
+    
+    @Test
+    public void testSchedulerServesControlBehindOverdueFlood() {
+        final long[] time = {0};
+        CommandScheduler scheduler = new CommandScheduler(() -> time[0]);
+        for (int i = 0; i < 1000; i++) {
+            scheduler.offer(new MessageCommand(1 + i % 10, "User" + (1 + i % 10), "java", "" + i));
+        }
+        time[0] = 2 * CommandScheduler.MAX_MESSAGE_DELAY_NANOS;
+        Command kick = new KickCommand(0, "Owner", "java", "User1");
+        Command invite = new InviteCommand(0, "Owner", "java", "User2");
+        scheduler.offer(kick);
+        scheduler.offer(invite);
+
+        assertTrue("overdue message first", scheduler.poll() instanceof MessageCommand);
+        assertSame("then control", kick, scheduler.poll());
+        assertTrue("one for one", scheduler.poll() instanceof MessageCommand);
+        assertSame("then control again", invite, scheduler.poll());
+        assertEquals("flood still queued", 998, scheduler.size());
+    }
+    
+    @Test
+    public void testSchedulerQueuesDirectMessagesBehindControl() {
+        final long[] time = {0};
+        CommandScheduler scheduler = new CommandScheduler(() -> time[0]);
+        Command whisper = new DirectMessageCommand(1, "User1", "User2", "psst");
+        Command join = new JoinCommand(3, "User3", "java");
+        scheduler.offer(whisper);
+        scheduler.offer(join);
+        assertSame("control first", join, scheduler.poll());
+        assertSame("then the message", whisper, scheduler.poll());
+    }
+    
+    @Test
+    public void testSchedulerForgetsServedCommands() {
+        final long[] time = {0};
+        CommandScheduler scheduler = new CommandScheduler(() -> time[0]);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 500; i++) {
+                int sender = i % 10;
+                scheduler.offer(new JoinCommand(sender, "User" + sender, "java"));
+                scheduler.offer(new MessageCommand(sender, "User" + sender, "java", "" + i));
+            }
+            assertEquals("tracked while queued", 1000, scheduler.trackedArrivals());
+            while (scheduler.poll() != null) {
+                time[0] += 1000;
+            }
+            assertEquals("drained", 0, scheduler.size());
+            assertEquals("nothing tracked once drained", 0, scheduler.trackedArrivals());
+        }
+    }
+    
+    @Test
+    public void testDirectMessageNeedsNoChannel() throws Exception {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        DirectMessageCommand hello = new DirectMessageCommand(0, "User0", "User1", "psst");
+        assertEquals("to both ends", 
+                     Broadcast.okay(hello, new TreeSet<>(Arrays.asList("User0", "User1"))),
+                     hello.updateServerModel(model));
+        assertTrue("no channel", model.getChannels().isEmpty());
+
+        BroadcastBuilder out = new BroadcastBuilder();
+        hello.updateServerModel(model, out);
+        assertEquals("builder path", hello.updateServerModel(model), out.toBroadcast(model));
+
+        DirectMessageCommand nobody = new DirectMessageCommand(0, "User0", "Nobody", "hi");
+        assertEquals("unknown user", Broadcast.error(nobody, ServerError.NO_SUCH_USER),
+                     nobody.updateServerModel(model));
+
+        model.enableOfflineDelivery(new OfflineStore(
+                java.nio.file.Files.createTempDirectory("offline").toFile()));
+        new NicknameCommand(2, "User2", "Duke").updateServerModel(model);
+        model.deregisterUser(2);
+        DirectMessageCommand later = new DirectMessageCommand(0, "User0", "Duke", "call me");
+        assertEquals("departed user", Broadcast.error(later, ServerError.NO_SUCH_USER),
+                     later.updateServerModel(model));
+        model.registerUser(3);
+        new NicknameCommand(3, "User3", "Duke").updateServerModel(model);
+        assertTrue("not queued for whoever takes the nickname", 
+                   model.drainOfflineMessages(3).isEmpty());
+        assertEquals("round trip", later, TrafficReplay.parse(0, later.toString()));
+    }
+    
+    @Test
+    public void testReplicaFollowsPrimaryOverLoopback() throws Exception {
+        ReplicationServer primary = new ReplicationServer(model, 
+                java.net.InetAddress.getLoopbackAddress(), 0);
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+
+        ReadReplica replica = new ReadReplica("127.0.0.1", primary.getPort(), 300_000_000L);
+        assertTrue("snapshot", replica.awaitEpoch(model.snapshot().getEpoch(), 5, 
+                                                  java.util.concurrent.TimeUnit.SECONDS));
+        model.registerUser(2);
+        new NicknameCommand(2, "User2", "Duke").updateServerModel(model);
+        new CreateCommand(2, "Duke", "scala", true).updateServerModel(model);
+        new InviteCommand(2, "Duke", "scala", "User1").updateServerModel(model);
+        new LeaveCommand(0, "User0", "java").updateServerModel(model);
+        model.deregisterUser(1);
+        assertTrue("caught up", replica.awaitEpoch(model.snapshot().getEpoch(), 5, 
+                                                   java.util.concurrent.TimeUnit.SECONDS));
+
+        assertEquals("users", new TreeSet<>(model.getRegisteredUsers()), 
+                     new TreeSet<>(replica.getRegisteredUsers()));
+        assertEquals("channels", model.getChannels(), new TreeSet<>(replica.getChannels()));
+        assertEquals("members", model.getUsers("scala"), replica.getUsers("scala"));
+        assertEquals("owner", "Duke", replica.getOwner("scala"));
+
+        primary.close();
+        Thread.sleep(400);
+        try {
+            replica.getChannels();
+            fail("a replica cut off from its primary must not answer");
+        } catch (IllegalStateException expected) {
+            assertNotNull("disconnected", replica.getFailure());
+        }
+        replica.close();
+    }
+    
+    @Test
+    public void testReplicaFailsCleanlyOnCorruptStream() throws Exception {
+        java.io.ByteArrayOutputStream batchFirst = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream out = new java.io.DataOutputStream(batchFirst);
+        out.writeByte(ReplicationServer.BATCH);
+        out.writeLong(1);
+        out.writeInt(0);
+        assertReplicaFails("batch before snapshot", batchFirst.toByteArray());
+
+        byte[][] changes = new byte[1][];
+        ChangeStream stream = new ChangeStream((epoch, batch) -> changes[0] = batch);
+        stream.memberAdded("nowhere", 0);
+        stream.commit(1);
+        java.io.ByteArrayOutputStream badBatch = new java.io.ByteArrayOutputStream();
+        out = new java.io.DataOutputStream(badBatch);
+        out.writeByte(ReplicationServer.SNAPSHOT);
+        out.writeLong(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(ReplicationServer.BATCH);
+        out.writeLong(1);
+        out.writeInt(changes[0].length);
+        out.write(changes[0]);
+        assertReplicaFails("join of a missing channel", badBatch.toByteArray());
+    }
+
+    /*
+     * Serves the given bytes to a replica and checks that it records a failure rather than
+     * dying with its reader thread.
+     */
+    private static void assertReplicaFails(String message, byte[] stream) throws Exception {
+        try (java.net.ServerSocket primary = new java.net.ServerSocket(0, 1,
+                java.net.InetAddress.getLoopbackAddress())) {
+            ReadReplica replica = new ReadReplica(primary.getInetAddress().getHostAddress(), 
+                                                  primary.getLocalPort(), 1_000_000_000L);
+            try (java.net.Socket connection = primary.accept()) {
+                connection.getOutputStream().write(stream);
+                connection.getOutputStream().flush();
+                assertFalse(message + ": never caught up", replica.awaitEpoch(Long.MAX_VALUE, 5,
+                        java.util.concurrent.TimeUnit.SECONDS));
+                assertNotNull(message + ": failure recorded", replica.getFailure());
+            }
+            replica.close();
+        }
+    }
+    
+    @Test
+    public void testExtensionsSeeEventsInOrderOffTheCommandThread() throws Exception {
+        java.util.concurrent.ExecutorService executor = 
+                java.util.concurrent.Executors.newSingleThreadExecutor();
+        ExtensionHub hub = new ExtensionHub(executor);
+        List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        hub.register(events -> {
+            threads.add(Thread.currentThread());
+            for (ExtensionEvent event : events) {
+                seen.add(event.getKind() + " " + event.getNickname() + " " + event.getChannel());
+            }
+        });
+        model.setExtensionHub(hub);
+
+        model.registerUser(0);
+        model.registerUser(1);
+        new NicknameCommand(1, "User1", "Duke").updateServerModel(model);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "Duke", "java").updateServerModel(model);
+        new MessageCommand(1, "Duke", "java", "hello").updateServerModel(model);
+        model.deregisterUser(0);
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (seen.size() < 8 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        executor.shutdown();
+
+        assertEquals("events", Arrays.asList(
+                "CONNECTED User0 null", "CONNECTED User1 null", "RENAMED Duke null",
+                "CHANNEL_CREATED User0 java", "JOINED Duke java", "MESSAGE Duke java",
+                "CHANNEL_REMOVED User0 java", "DISCONNECTED User0 null"), seen);
+        assertFalse("not on the command thread", threads.contains(Thread.currentThread()));
+    }
+    
+    @Test
+    public void testStuckExtensionDoesNotHoldUpCommands() throws Exception {
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.ExecutorService executor = 
+                java.util.concurrent.Executors.newCachedThreadPool();
+        ExtensionHub hub = new ExtensionHub(executor);
+        hub.register(events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        hub.register(events -> {
+            throw new IllegalStateException("broken bot");
+        });
+        model.setExtensionHub(hub);
+        long[] clock = { 0 };
+        model.setClock(() -> clock[0]);
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 2 * ExtensionHub.MAX_QUEUED_BATCHES; i++) {
+                clock[0] += 1_000_000_000L;
+                new MessageCommand(0, "User0", "java", "spam " + i).updateServerModel(model);
+            }
+            assertTrue("commands ran unhindered", System.nanoTime() - start < 5_000_000_000L);
+            assertTrue("stuck extension sheds batches", hub.getDropped() > 0);
+        } finally {
+            release.countDown();
+        }
+        executor.shutdown();
+        assertTrue("drained", executor.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS));
+        assertTrue("failures counted", hub.getFailures() > 0);
+    }
+    
+    @Test
+    public void testTenantsAreIsolatedQuotaedAndEvictedWhenIdle() throws Exception {
+        long[] clock = { 0 };
+        TenantHost host = new TenantHost(
+                java.nio.file.Files.createTempDirectory("tenants").toFile(), Runnable::run,
+                2, 1, 10_000_000_000L, () -> clock[0]);
+        List<Broadcast> out = new ArrayList<Broadcast>();
+        Tenant java = host.getTenant("java");
+        Tenant scala = host.getTenant("scala");
+
+        assertEquals("first user", 0, java.connect(out::add));
+        assertEquals("second user", 1, java.connect(out::add));
+        assertEquals("over the user quota", -1, java.connect(out::add));
+        assertEquals("own ID space", 0, scala.connect(out::add));
+        assertEquals("refused", 1, java.getRefusedConnections());
+
+        java.execute(new CreateCommand(0, "User0", "lobby", false), out::add);
+        CreateCommand second = new CreateCommand(0, "User0", "offtopic", false);
+        java.execute(second, out::add);
+        assertEquals("over the channel quota", 
+                     Broadcast.error(second, ServerError.QUOTA_EXCEEDED),
+                     out.get(out.size() - 1));
+        CreateCommand elsewhere = new CreateCommand(0, "User0", "lobby", false);
+        scala.execute(elsewhere, out::add);
+        assertEquals("same name in another tenant", 
+                     Broadcast.okay(elsewhere, Collections.singleton("User0")),
+                     out.get(out.size() - 1));
+
+        java.execute(new NicknameCommand(1, "User1", "Duke"), out::add);
+        java.execute(new JoinCommand(1, "Duke", "lobby"), out::add);
+        java.disconnect(1, out::add);
+        java.execute(new MessageCommand(0, "User0", "lobby", "see you"), out::add);
+        java.disconnect(0, out::add);
+        assertEquals("not idle long enough", 0, host.evictIdleTenants());
+        clock[0] += 10_000_000_000L;
+        assertEquals("only the empty tenant", 1, host.evictIdleTenants());
+        assertFalse("evicted", java.isLoaded());
+        assertTrue("still in use", scala.isLoaded());
+        assertEquals("loaded", 1, host.getLoadedCount());
+
+        int duke = java.connect(out::add);
+        java.execute(new NicknameCommand(duke, "User" + duke, "Duke"), out::add);
+        List<String> pending = new ArrayList<String>();
+        java.submit(model -> pending.addAll(model.drainOfflineMessages(duke)));
+        assertEquals("offline message survived eviction", 1, pending.size());
+        assertEquals("reloaded", 2, java.getLoads());
+        assertEquals("evictions", 1, java.getEvictions());
+        assertEquals("commands", 6, java.getCommands());
+        assertEquals("failures", 0, java.getFailures());
+    }
+    
+    @Test
+    public void testTenantsShareExecutorThreads() throws Exception {
+        java.util.concurrent.ExecutorService executor = 
+                java.util.concurrent.Executors.newFixedThreadPool(4);
+        TenantHost host = new TenantHost(
+                java.nio.file.Files.createTempDirectory("tenants").toFile(), executor,
+                0, 0, 1_000_000_000L);
+        java.util.concurrent.atomic.AtomicInteger errors = 
+                new java.util.concurrent.atomic.AtomicInteger();
+        for (int t = 0; t < 200; t++) {
+            Tenant tenant = host.getTenant("t" + t);
+            int owner = tenant.connect(broadcast -> { });
+            tenant.execute(new CreateCommand(owner, "User" + owner, "general", false), b -> { });
+            for (int i = 0; i < 20; i++) {
+                int userId = tenant.connect(broadcast -> { });
+                tenant.execute(new JoinCommand(userId, "User" + userId, "general"), broadcast -> {
+                    if (broadcast.toString().startsWith("err")) {
+                        errors.incrementAndGet();
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        assertTrue("drained", executor.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals("errors", 0, errors.get());
+        for (Tenant tenant : host.getTenants()) {
+            assertEquals("members", 21, tenant.getUserCount());
+            assertEquals("channels", 1, tenant.getChannelCount());
+            assertEquals("commands", 21, tenant.getCommands());
+        }
+    }
+    
+    @Test
+    public void testOverloadShedsLowPriorityWorkFirst() {
+        long[] clock = { 0 };
+        CommandScheduler scheduler = new CommandScheduler(() -> clock[0]);
+        AdmissionControl admission = new AdmissionControl(() -> clock[0]);
+        scheduler.setAdmissionControl(admission);
+        model.setAdmissionControl(admission);
+        model.registerUser(0);
+        model.registerUser(1);
+        model.execute(new CreateCommand(0, "User0", "java", false));
+        for (int i = 0; i < 4; i++) {
+            scheduler.offer(new JoinCommand(1, "User1", "java"));
+        }
+
+        clock[0] = 6_000_000L;
+        model.execute(scheduler.poll());
+        assertEquals("a burst is not overload", AdmissionControl.Level.NORMAL, 
+                     admission.getLevel());
+        clock[0] = 110_000_000L;
+        model.execute(scheduler.poll());
+        assertEquals("standing queue", AdmissionControl.Level.SHED_LOW_PRIORITY, 
+                     admission.getLevel());
+        assertFalse("new connections shed", admission.admitConnection());
+        CreateCommand create = new CreateCommand(1, "User1", "scala", false);
+        assertEquals("create shed", Broadcast.error(create, ServerError.RATE_LIMITED),
+                     model.execute(create));
+        SyncCommand sync = new SyncCommand(1, "User1", "java", 0);
+        assertEquals("history replay shed", Broadcast.error(sync, ServerError.RATE_LIMITED),
+                     model.execute(sync));
+        MessageCommand message = new MessageCommand(0, "User0", "java", "still here");
+        assertEquals("messages still run", Broadcast.okay(message, model.getUsers("java")),
+                     model.execute(message));
+
+        clock[0] = 1_200_000_000L;
+        model.execute(scheduler.poll());
+        assertEquals("lasting overload", AdmissionControl.Level.SHED_MESSAGES, 
+                     admission.getLevel());
+        MessageCommand later = new MessageCommand(0, "User0", "java", "hello?");
+        assertEquals("messages shed", Broadcast.error(later, ServerError.RATE_LIMITED),
+                     model.execute(later));
+        NicknameCommand nick = new NicknameCommand(1, "User1", "Duke");
+        assertEquals("control always runs", 
+                     Broadcast.okay(nick, new TreeSet<>(Arrays.asList("Duke", "User0"))),
+                     model.execute(nick));
+
+        clock[0] = 1_300_000_000L;
+        model.execute(scheduler.poll());
+        assertEquals("recovered once drained", AdmissionControl.Level.NORMAL, 
+                     admission.getLevel());
+        assertTrue("connections admitted", admission.admitConnection());
+        clock[0] += 60_000_000_000L;
+        model.execute(new LeaveCommand(1, "Duke", "java"));
+        assertEquals("still normal after idling", AdmissionControl.Level.NORMAL, 
+                     admission.getLevel());
+        assertEquals("shed", 3, admission.getShedCommands());
+        assertEquals("shed connections", 1, admission.getShedConnections());
+    }
+    
+    @Test
+    public void testSlowCommandsCountAsOverloadOnlyWithAQueue() {
+        long[] clock = { 0 };
+        AdmissionControl admission = new AdmissionControl(() -> clock[0]);
+        long started = admission.commandStarted();
+        clock[0] += 50_000_000L;
+        admission.commandFinished(started);
+        assertEquals("nothing waiting", AdmissionControl.Level.NORMAL, admission.getLevel());
+        admission.recordSojourn(AdmissionControl.TARGET_SOJOURN_NANOS, clock[0]);
+        assertEquals("slow with a queue", AdmissionControl.Level.SHED_LOW_PRIORITY, 
+                     admission.getLevel());
+        admission.recordSojourn(0, clock[0]);
+        assertEquals("queue drained", AdmissionControl.Level.NORMAL, admission.getLevel());
+    }
 }